@@ -87,6 +87,11 @@ public class AstPrinter implements Expr.Visitor<String> {
     return parenthesize("set " + expr.name.lexeme, expr.object, expr.value);
   }
 
+  @Override
+  public String visitSuperExpr(Expr.Super expr) {
+    return "super." + expr.method.lexeme;
+  }
+
   @Override
   public String visitThisExpr(Expr.This expr) {
     return "this";
@@ -0,0 +1,700 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+/*
+ * Compiles a resolved AST into bytecode for the VM. Globals are the names
+ * the Resolver left unresolved (depth -1), everything else lives in a stack
+ * slot of the function that declares it or is reached through an upvalue.
+ */
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private enum FunctionType { SCRIPT, FUNCTION, METHOD, INITIALIZER }
+
+  private static class Local {
+    final Symbol name;
+    final int depth;
+    boolean isCaptured = false;
+
+    Local(Symbol name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private static class Upvalue {
+    final int index;
+    final boolean isLocal;
+
+    Upvalue(int index, boolean isLocal) {
+      this.index = index;
+      this.isLocal = isLocal;
+    }
+  }
+
+  private static class Loop {
+    final Loop enclosing;
+    final int scopeDepth;
+    final List<Integer> breaks = new ArrayList<>();
+
+    Loop(Loop enclosing, int scopeDepth) {
+      this.enclosing = enclosing;
+      this.scopeDepth = scopeDepth;
+    }
+  }
+
+  // What compiling a lazy function's body needs, see LazyFunction
+  static final class LazyBody {
+    private final Expr.Function declaration;
+    private final FunctionType type;
+    // Names of its upvalues by index
+    private final Symbol[] upvalues;
+
+    private LazyBody(Expr.Function declaration, FunctionType type, Symbol[] upvalues) {
+      this.declaration = declaration;
+      this.type = type;
+      this.upvalues = upvalues;
+    }
+  }
+
+  // Compilation state of a single function, nested functions chain to the
+  // function they're declared in.
+  private static class FunctionState {
+    final FunctionState enclosing;
+    final VM.ObjFunction function;
+    final FunctionType type;
+    final List<Local> locals = new ArrayList<>();
+    final List<Upvalue> upvalues = new ArrayList<>();
+    int scopeDepth = 0;
+    Loop loop = null;
+    // Set for a lazy body, which is compiled without its enclosing functions
+    Symbol[] upvalueNames = null;
+
+    FunctionState(FunctionState enclosing, VM.ObjFunction function, FunctionType type) {
+      this.enclosing = enclosing;
+      this.function = function;
+      this.type = type;
+
+      // Slot 0 holds the receiver in methods and the callee otherwise
+      boolean hasReceiver = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+      locals.add(new Local(hasReceiver ? Symbol.THIS : null, 0));
+    }
+  }
+
+  private final Globals globals;
+  private final boolean isREPL;
+  private FunctionState current;
+  // Line of the token we're compiling, stored in the chunk's line table
+  private int line = 0;
+
+  BytecodeCompiler(Globals globals, boolean isREPL) {
+    this.globals = globals;
+    this.isREPL = isREPL;
+  }
+
+  VM.ObjFunction compile(List<Stmt> statements) {
+    current = new FunctionState(null, new VM.ObjFunction(null, 0), FunctionType.SCRIPT);
+    for (Stmt statement : statements) {
+      compile(statement);
+    }
+    emitReturn();
+    return current.function;
+  }
+
+  // Fills in the chunk of a lazy function on its first call
+  void compileLazy(VM.ObjFunction function) {
+    LazyBody lazy = function.lazy;
+    current = new FunctionState(null, function, lazy.type);
+    current.upvalueNames = lazy.upvalues;
+    body(lazy.declaration.lazy.parse());
+    function.lazy = null;
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  // == Statements ==
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    line = stmt.name.line;
+    int name = identifierConstant(stmt.name.symbol);
+
+    // Interpreter checks the superclass before the class name is defined
+    if (stmt.superclass != null) {
+      compile(stmt.superclass);
+      line = stmt.superclass.name.line;
+      emit(CHECK_SUPERCLASS);
+      emit(POP);
+    }
+
+    emit(CLASS, name);
+    defineVariable(stmt.name.symbol);
+
+    if (stmt.superclass != null) {
+      compile(stmt.superclass);
+      beginScope();
+      addLocal(Symbol.SUPER);
+
+      namedVariable(stmt.name, false);
+      emit(INHERIT);
+    }
+
+    namedVariable(stmt.name, false);
+    for (Stmt.Function method : stmt.methods) {
+      FunctionType type = method.name.symbol == Symbol.INIT
+          ? FunctionType.INITIALIZER
+          : FunctionType.METHOD;
+      // Methods are named after their class, same as in Interpreter
+      function(stmt.name.lexeme, method.function, type);
+      line = method.name.line;
+      emit(METHOD, identifierConstant(method.name.symbol));
+    }
+    emit(POP);
+
+    if (stmt.superclass != null) endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    // Print expression in REPL after executing it
+    emit(isREPL ? PRINT : POP);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    line = stmt.name.line;
+    if (current.scopeDepth > 0) {
+      // Declare the local first so the function can refer to itself
+      addLocal(stmt.name.symbol);
+      function(stmt.name.lexeme, stmt.function, FunctionType.FUNCTION);
+    } else {
+      function(stmt.name.lexeme, stmt.function, FunctionType.FUNCTION);
+      emit(DEFINE_GLOBAL, globals.slot(stmt.name.symbol));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+    int thenJump = emitJump(JUMP_IF_FALSE);
+    emit(POP);
+    compile(stmt.thenBranch);
+
+    int elseJump = emitJump(JUMP);
+    patchJump(thenJump);
+    emit(POP);
+    if (stmt.elseBranch != null) compile(stmt.elseBranch);
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emit(PRINT);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    line = stmt.keyword.line;
+    if (stmt.value == null) {
+      emitReturn();
+    } else if (isCall(stmt.value)) {
+      call((Expr.Call)stmt.value, TAIL_CALL);
+      emit(RETURN);
+    } else if (isInvoke(stmt.value)) {
+      Expr.Call call = (Expr.Call)stmt.value;
+      invoke(call, (Expr.Get)call.callee, TAIL_INVOKE);
+      emit(RETURN);
+    } else {
+      compile(stmt.value);
+      emit(RETURN);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emit(NIL);
+    }
+    line = stmt.name.line;
+    defineVariable(stmt.name.symbol);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = chunk().count;
+    compile(stmt.condition);
+
+    int exitJump = emitJump(JUMP_IF_FALSE);
+    emit(POP);
+
+    current.loop = new Loop(current.loop, current.scopeDepth);
+    compile(stmt.body);
+    emitLoop(loopStart);
+
+    patchJump(exitJump);
+    emit(POP);
+
+    // `break` lands after the condition was already popped
+    for (int jump : current.loop.breaks) {
+      patchJump(jump);
+    }
+    current.loop = current.loop.enclosing;
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    // Discard locals declared inside the loop body without forgetting them,
+    // the code after `break` in the same block still refers to their slots
+    for (int i = current.locals.size() - 1; i >= 0; i--) {
+      Local local = current.locals.get(i);
+      if (local.depth <= current.loop.scopeDepth) break;
+      emit(local.isCaptured ? CLOSE_UPVALUE : POP);
+    }
+    current.loop.breaks.add(emitJump(JUMP));
+    return null;
+  }
+
+  // == Expressions ==
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+    namedVariable(expr.name, true);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+    if (expr.operator.type == TokenType.COMMA) {
+      emit(POP);
+      compile(expr.right);
+      return null;
+    }
+
+    compile(expr.right);
+    line = expr.operator.line;
+    switch (expr.operator.type) {
+      case BANG_EQUAL: emit(NOT_EQUAL); break;
+      case EQUAL_EQUAL: emit(EQUAL); break;
+      case GREATER: emit(GREATER); break;
+      case GREATER_EQUAL: emit(GREATER_EQUAL); break;
+      case LESS: emit(LESS); break;
+      case LESS_EQUAL: emit(LESS_EQUAL); break;
+      case MINUS: emit(SUBTRACT); break;
+      case PLUS: emit(ADD); break;
+      case SLASH: emit(DIVIDE); break;
+      case STAR: emit(MULTIPLY); break;
+      default:
+        throw new IllegalStateException("Unknown binary operator " + expr.operator.type);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    if (expr.callee instanceof Expr.Get) {
+      invoke(expr, (Expr.Get)expr.callee, INVOKE);
+      return null;
+    }
+    if (expr.callee instanceof Expr.Super) {
+      superInvoke(expr, (Expr.Super)expr.callee);
+      return null;
+    }
+
+    call(expr, CALL);
+    return null;
+  }
+
+  // Calls that aren't method invocations
+  private static boolean isCall(Expr expr) {
+    if (!(expr instanceof Expr.Call)) return false;
+    Expr callee = ((Expr.Call)expr).callee;
+    return !(callee instanceof Expr.Get) && !(callee instanceof Expr.Super);
+  }
+
+  private static boolean isInvoke(Expr expr) {
+    return expr instanceof Expr.Call && ((Expr.Call)expr).callee instanceof Expr.Get;
+  }
+
+  private void call(Expr.Call expr, int instruction) {
+    compile(expr.callee);
+
+    // Interpreter rejects a non-callable callee before evaluating arguments
+    if (!allSimple(expr.arguments)) {
+      line = expr.paren.line;
+      emit(CHECK_CALLABLE);
+    }
+
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+    line = expr.paren.line;
+    emit(instruction, expr.arguments.size());
+  }
+
+  /*
+   * `object.name(...)` leaves the receiver in slot 0 of the method's frame
+   * instead of creating a bound method. Property errors are reported at the
+   * line of the instruction, call errors at the line of its last operand.
+   */
+  private void invoke(Expr.Call expr, Expr.Get callee, int instruction) {
+    compile(callee.object);
+    int cache = chunk().addConstant(new PropertyCache(callee.name.symbol));
+
+    // Interpreter looks the method up before evaluating arguments
+    if (!allSimple(expr.arguments)) {
+      line = callee.name.line;
+      emit(CHECK_METHOD);
+      line = expr.paren.line;
+      emit(cache);
+    }
+
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+    line = callee.name.line;
+    emit(instruction, cache);
+    line = expr.paren.line;
+    emit(expr.arguments.size());
+  }
+
+  private void superInvoke(Expr.Call expr, Expr.Super callee) {
+    namedVariable(new Token(TokenType.THIS, "this", null, callee.keyword.line), false);
+    int name = identifierConstant(callee.method.symbol);
+
+    if (!allSimple(expr.arguments)) {
+      namedVariable(callee.keyword, false);
+      line = callee.method.line;
+      emit(CHECK_SUPER_METHOD, name);
+    }
+
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+    namedVariable(callee.keyword, false);
+    line = callee.method.line;
+    emit(SUPER_INVOKE, name);
+    line = expr.paren.line;
+    emit(expr.arguments.size());
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    line = expr.name.line;
+    emit(GET_PROPERTY, chunk().addConstant(new PropertyCache(expr.name.symbol)));
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emit(NIL);
+    } else if (expr.value.equals(true)) {
+      emit(TRUE);
+    } else if (expr.value.equals(false)) {
+      emit(FALSE);
+    } else {
+      emit(CONSTANT, chunk().addConstant(expr.value));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+
+    if (expr.operator.type == TokenType.OR) {
+      int elseJump = emitJump(JUMP_IF_FALSE);
+      int endJump = emitJump(JUMP);
+      patchJump(elseJump);
+      emit(POP);
+      compile(expr.right);
+      patchJump(endJump);
+    } else {
+      int endJump = emitJump(JUMP_IF_FALSE);
+      emit(POP);
+      compile(expr.right);
+      patchJump(endJump);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+
+    // Interpreter rejects a non-instance before evaluating the value
+    if (!isSimple(expr.value)) {
+      line = expr.name.line;
+      emit(CHECK_INSTANCE);
+    }
+
+    compile(expr.value);
+    line = expr.name.line;
+    emit(SET_PROPERTY, chunk().addConstant(new PropertyCache(expr.name.symbol)));
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    namedVariable(new Token(TokenType.THIS, "this", null, expr.keyword.line), false);
+    namedVariable(expr.keyword, false);
+    line = expr.method.line;
+    emit(GET_SUPER, identifierConstant(expr.method.symbol));
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    namedVariable(expr.keyword, false);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+    line = expr.operator.line;
+    emit(expr.operator.type == TokenType.BANG ? NOT : NEGATE);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    namedVariable(expr.name, false);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionExpr(Expr.Function expr) {
+    function(null, expr, FunctionType.FUNCTION);
+    return null;
+  }
+
+  // == Helpers ==
+
+  private void function(String name, Expr.Function declaration, FunctionType type) {
+    FunctionState state = new FunctionState(current,
+        new VM.ObjFunction(name, declaration.params.size()), type);
+
+    if (declaration.lazy != null) {
+      // The names its body uses are enough to capture its upvalues, the
+      // body is compiled on the first call
+      Symbol[] upvalueNames = new Symbol[declaration.lazy.names.length];
+      for (Symbol symbol : declaration.lazy.names) {
+        int upvalue = resolveUpvalue(state, symbol);
+        if (upvalue != -1) upvalueNames[upvalue] = symbol;
+      }
+      upvalueNames = Arrays.copyOf(upvalueNames, state.upvalues.size());
+      state.function.lazy = new LazyBody(declaration, type, upvalueNames);
+    } else {
+      current = state;
+      body(declaration);
+      current = state.enclosing;
+    }
+    state.function.upvalueCount = state.upvalues.size();
+
+    emit(CLOSURE, chunk().addConstant(state.function));
+    for (Upvalue upvalue : state.upvalues) {
+      emit(upvalue.isLocal ? 1 : 0);
+      emit(upvalue.index);
+    }
+  }
+
+  // Parameters and body of the function `current` compiles
+  private void body(Expr.Function declaration) {
+    beginScope();
+    for (Token param : declaration.params) {
+      addLocal(param.symbol);
+    }
+    for (Stmt statement : declaration.body) {
+      compile(statement);
+    }
+    emitReturn();
+  }
+
+  /*
+   * Locals and upvalues are looked up by name. Compilation goes in the same
+   * order as resolution did, so a name the Resolver left as a global isn't
+   * declared here yet either.
+   */
+  private void namedVariable(Token name, boolean isAssign) {
+    line = name.line;
+    int slot = resolveLocal(current, name.symbol);
+    if (slot != -1) {
+      emit(isAssign ? SET_LOCAL : GET_LOCAL, slot);
+      return;
+    }
+
+    int upvalue = resolveUpvalue(current, name.symbol);
+    if (upvalue != -1) {
+      emit(isAssign ? SET_UPVALUE : GET_UPVALUE, upvalue);
+      return;
+    }
+
+    emit(isAssign ? SET_GLOBAL : GET_GLOBAL, globals.slot(name.symbol));
+  }
+
+  private int resolveLocal(FunctionState state, Symbol name) {
+    for (int i = state.locals.size() - 1; i >= 0; i--) {
+      if (state.locals.get(i).name == name) return i;
+    }
+    return -1;
+  }
+
+  private int resolveUpvalue(FunctionState state, Symbol name) {
+    if (state.upvalueNames != null) {
+      for (int i = 0; i < state.upvalueNames.length; i++) {
+        if (state.upvalueNames[i] == name) return i;
+      }
+      return -1;
+    }
+    if (state.enclosing == null) return -1;
+
+    int local = resolveLocal(state.enclosing, name);
+    if (local != -1) {
+      state.enclosing.locals.get(local).isCaptured = true;
+      return addUpvalue(state, local, true);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, name);
+    if (upvalue != -1) return addUpvalue(state, upvalue, false);
+
+    return -1;
+  }
+
+  private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+    for (int i = 0; i < state.upvalues.size(); i++) {
+      Upvalue upvalue = state.upvalues.get(i);
+      if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+    }
+    state.upvalues.add(new Upvalue(index, isLocal));
+    return state.upvalues.size() - 1;
+  }
+
+  private void defineVariable(Symbol name) {
+    if (current.scopeDepth > 0) {
+      // The value on top of the stack becomes the local's slot
+      addLocal(name);
+    } else {
+      emit(DEFINE_GLOBAL, globals.slot(name));
+    }
+  }
+
+  private void addLocal(Symbol name) {
+    current.locals.add(new Local(name, current.scopeDepth));
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope() {
+    current.scopeDepth--;
+    List<Local> locals = current.locals;
+    while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+      emit(locals.get(locals.size() - 1).isCaptured ? CLOSE_UPVALUE : POP);
+      locals.remove(locals.size() - 1);
+    }
+  }
+
+  /*
+   * Expressions that can't fail or have side effects, so it doesn't matter
+   * whether they're evaluated before or after a runtime check.
+   */
+  private boolean isSimple(Expr expr) {
+    if (expr instanceof Expr.Literal || expr instanceof Expr.This || expr instanceof Expr.Function) {
+      return true;
+    }
+    if (expr instanceof Expr.Variable) return ((Expr.Variable)expr).kind != Resolver.GLOBAL;
+    if (expr instanceof Expr.Grouping) return isSimple(((Expr.Grouping)expr).expression);
+    return false;
+  }
+
+  private boolean allSimple(List<Expr> exprs) {
+    for (Expr expr : exprs) {
+      if (!isSimple(expr)) return false;
+    }
+    return true;
+  }
+
+  private int identifierConstant(Symbol name) {
+    return chunk().addConstant(name);
+  }
+
+  private Chunk chunk() {
+    return current.function.chunk;
+  }
+
+  private void emit(int value) {
+    chunk().write(value, line);
+  }
+
+  private void emit(int op, int operand) {
+    emit(op);
+    emit(operand);
+  }
+
+  private void emitReturn() {
+    if (current.type == FunctionType.INITIALIZER) {
+      emit(GET_LOCAL, 0);
+    } else {
+      emit(NIL);
+    }
+    emit(RETURN);
+  }
+
+  private int emitJump(int op) {
+    emit(op);
+    emit(0);
+    return chunk().count - 1;
+  }
+
+  // Jump offsets are relative to the instruction after the operand
+  private void patchJump(int operand) {
+    chunk().code[operand] = chunk().count - operand - 1;
+  }
+
+  private void emitLoop(int loopStart) {
+    emit(LOOP);
+    emit(chunk().count - loopStart + 1);
+  }
+}
@@ -0,0 +1,29 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * Callee seen by a plain call site (not a method invocation) while its
+ * function runs in the interpreter. FunctionJit inlines the callee of a
+ * site that only ever called one function, behind a check that it's still
+ * the same one.
+ *
+ * Every site also remembers the last callee whose arity matched its
+ * arguments, so calling the same one again skips the check.
+ */
+final class CallProfile {
+  // The only callee so far, null before the first call and once there
+  // was a second one
+  Object target = null;
+  boolean isPolymorphic = false;
+  Object checked = null;
+
+  void record(Object callee) {
+    if (callee == target || isPolymorphic) return;
+    if (target == null) {
+      target = callee;
+    } else {
+      // Dropping it also lets the closure be collected
+      target = null;
+      isPolymorphic = true;
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * Box for a local variable that a closure captures. Its slot in the frame
+ * holds the cell instead of the value and every closure using the variable
+ * gets the same cell, so they all see assignments. A closure keeps only the
+ * cells it uses alive, not the frames they were declared in.
+ */
+final class Cell {
+  Object value;
+
+  Cell(Object value) {
+    this.value = value;
+  }
+}
@@ -0,0 +1,46 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * A compiled sequence of instructions together with its constant pool and a
+ * line table that has the source line for every int in `code`.
+ */
+class Chunk {
+  int[] code = new int[16];
+  int[] lines = new int[16];
+  int count = 0;
+  Object[] constants = new Object[8];
+  int constantCount = 0;
+  // Reuse constant slots for equal values, mostly for repeated names
+  private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+  void write(int value, int line) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      lines = Arrays.copyOf(lines, count * 2);
+    }
+    code[count] = value;
+    lines[count] = line;
+    count++;
+  }
+
+  int addConstant(Object value) {
+    Integer index = constantIndex.get(value);
+    if (index != null) return index;
+
+    index = appendConstant(value);
+    constantIndex.put(value, index);
+    return index;
+  }
+
+  private int appendConstant(Object value) {
+    if (constantCount == constants.length) {
+      constants = Arrays.copyOf(constants, constantCount * 2);
+    }
+    constants[constantCount] = value;
+    return constantCount++;
+  }
+}
@@ -0,0 +1,356 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Just enough of a JVM class file writer for FunctionJit: one class with
+ * fields and methods whose code only needs the handful of instructions the
+ * JIT emits.
+ *
+ * Classes are written as version 50 (Java 6) so they don't need a
+ * StackMapTable, HotSpot verifies them by type inference instead.
+ */
+class ClassWriter {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  private static final int VERSION = 50;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> poolIndex = new HashMap<>();
+  private int poolCount = 1;
+
+  private final int thisClass;
+  private final int superClass;
+  private final int[] interfaces;
+  private final List<byte[]> fields = new ArrayList<>();
+  private final List<MethodWriter> methods = new ArrayList<>();
+
+  ClassWriter(String name, String superName, String... interfaceNames) {
+    thisClass = classRef(name);
+    superClass = classRef(superName);
+    interfaces = new int[interfaceNames.length];
+    for (int i = 0; i < interfaceNames.length; i++) {
+      interfaces[i] = classRef(interfaceNames[i]);
+    }
+  }
+
+  // == Constant pool ==
+
+  int utf8(String value) {
+    return constant("U" + value, 1, out -> out.writeUTF(value));
+  }
+
+  int classRef(String name) {
+    int nameIndex = utf8(name);
+    return constant("C" + name, 7, out -> out.writeShort(nameIndex));
+  }
+
+  int integer(int value) {
+    return constant("I" + value, 3, out -> out.writeInt(value));
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(9, owner, name, descriptor);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(10, owner, name, descriptor);
+  }
+
+  int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef(11, owner, name, descriptor);
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    int classIndex = classRef(owner);
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    int nameAndType = constant("N" + name + ":" + descriptor, 12, out -> {
+      out.writeShort(nameIndex);
+      out.writeShort(descriptorIndex);
+    });
+    return constant(tag + owner + "." + name + ":" + descriptor, tag, out -> {
+      out.writeShort(classIndex);
+      out.writeShort(nameAndType);
+    });
+  }
+
+  private interface Body {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private int constant(String key, int tag, Body body) {
+    Integer index = poolIndex.get(key);
+    if (index != null) return index;
+
+    try {
+      poolOut.writeByte(tag);
+      body.write(poolOut);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    poolIndex.put(key, poolCount);
+    return poolCount++;
+  }
+
+  // == Members ==
+
+  void field(int access, String name, String descriptor) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    fields.add(bytes.toByteArray());
+  }
+
+  MethodWriter method(int access, String name, String descriptor, int argumentSlots) {
+    MethodWriter method = new MethodWriter(this, access, name, descriptor, argumentSlots);
+    methods.add(method);
+    return method;
+  }
+
+  byte[] toByteArray() {
+    int code = utf8("Code");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      pool.writeTo(out);
+
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(interfaces.length);
+      for (int index : interfaces) {
+        out.writeShort(index);
+      }
+
+      out.writeShort(fields.size());
+      for (byte[] field : fields) {
+        out.write(field);
+      }
+
+      out.writeShort(methods.size());
+      for (MethodWriter method : methods) {
+        method.writeTo(out, code);
+      }
+
+      // No class attributes
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /*
+   * Bytecode of a single method. Tracks the operand stack depth as
+   * instructions are emitted to compute max_stack, callers pass how each
+   * instruction changes it.
+   */
+  static class MethodWriter {
+    // Opcodes used by the JIT
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ACMPEQ = 0xa5;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+
+    static class Label {
+      int offset = -1;
+      // Positions of branch instructions that jump here
+      final List<Integer> branches = new ArrayList<>();
+    }
+
+    final ClassWriter owner;
+    private final int access;
+    private final int name;
+    private final int descriptor;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final List<Label> labels = new ArrayList<>();
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+
+    MethodWriter(ClassWriter owner, int access, String name, String descriptor, int argumentSlots) {
+      this.owner = owner;
+      this.access = access;
+      this.name = owner.utf8(name);
+      this.descriptor = owner.utf8(descriptor);
+      this.maxLocals = argumentSlots;
+    }
+
+    int size() {
+      return code.size();
+    }
+
+    void op(int opcode, int stackChange) {
+      code.write(opcode);
+      adjustStack(stackChange);
+    }
+
+    void op1(int opcode, int operand, int stackChange) {
+      code.write(opcode);
+      code.write(operand);
+      adjustStack(stackChange);
+    }
+
+    void op2(int opcode, int operand, int stackChange) {
+      code.write(opcode);
+      code.write(operand >> 8);
+      code.write(operand);
+      adjustStack(stackChange);
+    }
+
+    void load(int local) {
+      maxLocals = Math.max(maxLocals, local + 1);
+      op1(ALOAD, local, 1);
+    }
+
+    void store(int local) {
+      maxLocals = Math.max(maxLocals, local + 1);
+      op1(ASTORE, local, -1);
+    }
+
+    void pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        op(ICONST_0 + value, 1);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        op1(BIPUSH, value & 0xff, 1);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        op2(SIPUSH, value & 0xffff, 1);
+      } else {
+        op2(LDC_W, owner.integer(value), 1);
+      }
+    }
+
+    void invokeStatic(String owner, String name, String descriptor) {
+      op2(INVOKESTATIC, this.owner.methodRef(owner, name, descriptor), stackEffect(descriptor, false));
+    }
+
+    void invokeVirtual(String owner, String name, String descriptor) {
+      op2(INVOKEVIRTUAL, this.owner.methodRef(owner, name, descriptor), stackEffect(descriptor, true));
+    }
+
+    void invokeSpecial(String owner, String name, String descriptor) {
+      op2(INVOKESPECIAL, this.owner.methodRef(owner, name, descriptor), stackEffect(descriptor, true));
+    }
+
+    Label newLabel() {
+      Label label = new Label();
+      labels.add(label);
+      return label;
+    }
+
+    void mark(Label label) {
+      label.offset = code.size();
+    }
+
+    // Conditional branches pop the int they test, IF_ACMP the two
+    // references they compare
+    void jump(int opcode, Label label) {
+      label.branches.add(code.size());
+      int effect = opcode == GOTO ? 0 : opcode == IF_ACMPEQ || opcode == IF_ACMPNE ? -2 : -1;
+      op2(opcode, 0, effect);
+    }
+
+    // The stack depth where control flow joins again, e.g. after a `goto`
+    void setStack(int depth) {
+      stack = depth;
+    }
+
+    int stack() {
+      return stack;
+    }
+
+    private void adjustStack(int change) {
+      stack += change;
+      maxStack = Math.max(maxStack, stack);
+    }
+
+    /*
+     * Computes how many slots a call pops and pushes from its descriptor.
+     * Only object, int and boolean arguments are supported.
+     */
+    private static int stackEffect(String descriptor, boolean hasReceiver) {
+      int effect = hasReceiver ? -1 : 0;
+      int i = 1;
+      while (descriptor.charAt(i) != ')') {
+        char c = descriptor.charAt(i);
+        while (c == '[') c = descriptor.charAt(++i);
+        if (c == 'L') i = descriptor.indexOf(';', i);
+        effect--;
+        i++;
+      }
+      if (descriptor.charAt(i + 1) != 'V') effect++;
+      return effect;
+    }
+
+    void writeTo(DataOutputStream out, int codeAttribute) throws IOException {
+      byte[] bytes = code.toByteArray();
+      for (Label label : labels) {
+        for (int branch : label.branches) {
+          int offset = label.offset - branch;
+          bytes[branch + 1] = (byte)(offset >> 8);
+          bytes[branch + 2] = (byte)offset;
+        }
+      }
+
+      out.writeShort(access);
+      out.writeShort(name);
+      out.writeShort(descriptor);
+      // The only attribute is the code
+      out.writeShort(1);
+
+      out.writeShort(codeAttribute);
+      out.writeInt(12 + bytes.length);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      // No exception table, no code attributes
+      out.writeShort(0);
+      out.writeShort(0);
+    }
+  }
+}
@@ -0,0 +1,10 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * Body of a Lox function compiled to a JVM class by FunctionJit. `upvalues`
+ * are the cells the function captured, the function's own parameters and
+ * locals live in JVM locals of the generated method.
+ */
+interface CompiledFunction {
+  Object call(Interpreter interpreter, Cell[] upvalues, Object[] arguments);
+}
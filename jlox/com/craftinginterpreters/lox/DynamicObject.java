@@ -0,0 +1,44 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+/*
+ * Object with fields added at runtime, stored in an array laid out by its
+ * Shape. Base of LoxInstance and the VM's instances.
+ */
+abstract class DynamicObject {
+  private static final Object[] EMPTY = new Object[0];
+
+  private Shape shape;
+  private Object[] fields;
+
+  DynamicObject(Shape root) {
+    shape = root;
+    fields = root.instanceSize == 0 ? EMPTY : new Object[root.instanceSize];
+  }
+
+  // Field slot for the property of `cache`, -1 if there's no such field
+  final int slotOf(PropertyCache cache) {
+    return cache.lookup(shape);
+  }
+
+  final Object getField(int slot) {
+    return fields[slot];
+  }
+
+  final void setField(PropertyCache cache, Object value) {
+    int slot = cache.lookup(shape);
+    if (slot == -1) {
+      shape = cache.transition(shape);
+      slot = shape.size - 1;
+      if (slot == fields.length) grow();
+    }
+    fields[slot] = value;
+  }
+
+  private void grow() {
+    Shape root = shape.root;
+    root.instanceSize = Math.max(root.instanceSize, shape.size);
+    fields = Arrays.copyOf(fields, root.instanceSize);
+  }
+}
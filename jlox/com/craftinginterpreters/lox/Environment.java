@@ -1,43 +1,76 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class Environment {
-  final Environment enclosing;
-  // We store variables as a list and address them by index.
-  // Since we know each variable's index from the time of definition
-  // we can use that instead of searching for the variable name in a Map.
-  private final List<Object> values = new ArrayList<>();
+  // Marks a slot holding an unboxed number, the value is in `numbers`
+  private static final Object NUMBER = new Object();
+  private static final Object[] EMPTY = new Object[0];
+
+  // Cells of the variables the running function captured, see Cell. Null
+  // for frames of functions that capture nothing.
+  final Cell[] upvalues;
+  // We store variables in an array and address them by index. The Resolver
+  // gives every variable its slot and works out the size up front: a call
+  // gets one frame for all of the function's locals, blocks only get one
+  // at the top level.
+  private final Object[] values;
+  // Allocated on the first number stored unboxed
+  private double[] numbers;
+
+  Environment(Cell[] upvalues, int size) {
+    this.upvalues = upvalues;
+    this.values = size == 0 ? EMPTY : new Object[size];
+  }
+
+  // Numbers are boxed here, when they escape into the rest of the runtime
+  Object get(int slot) {
+    Object value = values[slot];
+    if (value == NUMBER) return numbers[slot];
+    return value;
+  }
 
-  Environment() {
-    enclosing = null;
+  boolean isNumber(int slot) {
+    return values[slot] == NUMBER;
   }
 
-  Environment(Environment enclosing) {
-    this.enclosing = enclosing;
+  double getNumber(int slot) {
+    return numbers[slot];
   }
 
-  void define(Object value) {
-    values.add(value);
+  void assign(int slot, Object value) {
+    values[slot] = value;
   }
 
-  Object getAt(int distance, int slot) {
-    return ancestor(distance).values.get(slot);
+  void assignNumber(int slot, double value) {
+    if (numbers == null) numbers = new double[values.length];
+    numbers[slot] = value;
+    values[slot] = NUMBER;
   }
 
-  void assignAt(int distance, int slot, Object value) {
-    ancestor(distance).values.set(slot, value);
+  // Slot of a captured variable
+  Cell cell(int slot) {
+    return (Cell)values[slot];
+  }
+
+  // Captured parameters are boxed once the arguments are in their slots
+  void box(int[] slots) {
+    for (int slot : slots) {
+      values[slot] = new Cell(get(slot));
+    }
   }
 
   /*
-   * Unwraps parent environments by certain distance
+   * Cells for a closure created while this frame runs. `captures` has the
+   * slot of every variable it uses from this frame, or `-1 - index` for
+   * one this frame's function captured itself.
    */
-  Environment ancestor(int distance) {
-    Environment environment = this;
-    for (int i = 0; i < distance; i++) {
-      environment = environment.enclosing;
+  Cell[] capture(int[] captures) {
+    if (captures.length == 0) return null;
+
+    Cell[] cells = new Cell[captures.length];
+    for (int i = 0; i < captures.length; i++) {
+      int capture = captures[i];
+      cells[i] = capture >= 0 ? (Cell)values[capture] : upvalues[-1 - capture];
     }
-    return environment;
+    return cells;
   }
 }
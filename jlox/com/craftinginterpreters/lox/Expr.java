@@ -31,6 +31,9 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    int kind = -1;
+    int slot = -1;
   }
 
   static class Binary extends Expr {
@@ -65,6 +68,8 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+
+    CallProfile profile;
   }
 
   static class Get extends Expr {
@@ -80,6 +85,8 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+
+    PropertyCache cache;
   }
 
   static class Grouping extends Expr {
@@ -140,6 +147,8 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+
+    PropertyCache cache;
   }
 
   static class Super extends Expr {
@@ -155,6 +164,11 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+
+    int kind = -1;
+    int slot = -1;
+    int thisKind = -1;
+    int thisSlot = -1;
   }
 
   static class This extends Expr {
@@ -168,6 +182,9 @@ abstract class Expr {
     }
 
     final Token keyword;
+
+    int kind = -1;
+    int slot = -1;
   }
 
   static class Unary extends Expr {
@@ -196,12 +213,14 @@ abstract class Expr {
     }
 
     final Token name;
+
+    int kind = -1;
+    int slot = -1;
   }
 
   static class Function extends Expr {
-    Function(List<Token> params, List<Stmt> body) {
+    Function(List<Token> params) {
       this.params = params;
-      this.body = body;
     }
 
     @Override
@@ -210,7 +229,13 @@ abstract class Expr {
     }
 
     final List<Token> params;
-    final List<Stmt> body;
+
+    List<Stmt> body;
+    FunctionProfile profile;
+    int slots = -1;
+    int[] cells;
+    int[] captures;
+    LazyFunction lazy;
   }
 
 
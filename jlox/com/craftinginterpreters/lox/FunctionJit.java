@@ -0,0 +1,748 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.craftinginterpreters.lox.ClassWriter.MethodWriter;
+
+import static com.craftinginterpreters.lox.ClassWriter.MethodWriter.*;
+
+/*
+ * Second execution tier. Once a function has been called `threshold` times
+ * its body is compiled into a JVM class implementing CompiledFunction and
+ * loaded as a hidden class, so HotSpot can inline and optimize it like any
+ * other Java code.
+ *
+ * The slots of the function's frame become JVM locals. That's only valid if
+ * no closure can capture them, so functions that declare functions or
+ * classes are left to the interpreter. Everything the function itself
+ * captured is read from the cells in its upvalues as usual.
+ *
+ * Call sites that only ever called one small function while the caller was
+ * interpreted get the callee's body compiled in place of the call. Its
+ * frame becomes more JVM locals after the caller's, so the call allocates
+ * nothing. A reference check on the callee guards the body, if the name
+ * was rebound since the site falls back to a real call.
+ */
+class FunctionJit implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private static final String PACKAGE = "com/craftinginterpreters/lox/";
+  private static final String OBJECT = "java/lang/Object";
+  private static final String RUNTIME = PACKAGE + "JitRuntime";
+  private static final String CELL = PACKAGE + "Cell";
+  private static final String CELLS = "[L" + CELL + ";";
+  private static final String TOKEN = PACKAGE + "Token";
+  private static final String CACHE = PACKAGE + "PropertyCache";
+  private static final String CALL_DESCRIPTOR = "(L" + PACKAGE + "Interpreter;" + CELLS +
+      "[Ljava/lang/Object;)Ljava/lang/Object;";
+
+  // JVM locals of the generated `call` method
+  private static final int THIS = 0;
+  private static final int INTERPRETER = 1;
+  private static final int UPVALUES = 2;
+  private static final int ARGUMENTS = 3;
+  private static final int FIRST_LOCAL = 4;
+
+  static final int DEFAULT_THRESHOLD = 1000;
+  // Largest body that is inlined, in nodes
+  private static final int INLINE_SIZE = 40;
+  // Locals are addressed with one byte
+  private static final int MAX_LOCALS = 256;
+
+  private static class Unsupported extends RuntimeException {
+    Unsupported(String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  // 0 turns the JIT off
+  int threshold = DEFAULT_THRESHOLD;
+  // Functions that left the interpreter tier, for diagnostics
+  final List<FunctionProfile> tiered = new ArrayList<>();
+  // Functions inlined somewhere and the number of call sites
+  final List<FunctionProfile> inlined = new ArrayList<>();
+  int inlinedSites = 0;
+
+  // State of the function being compiled
+  private String className;
+  private MethodWriter code;
+  private List<Object> constants;
+  private List<MethodWriter.Label> loopExits;
+  private boolean shouldInline;
+  // Functions whose bodies are being compiled, the outermost first
+  private List<Expr.Function> functions;
+  // Functions inlined so far
+  private List<FunctionProfile> inlinedHere;
+  // JVM local of the first slot of the frame, and the first free one
+  private int frame;
+  private int nextLocal;
+  // In an inlined body: the callee's upvalues, the local `return` stores
+  // the result in and where it jumps to
+  private Cell[] upvalues;
+  private int result;
+  private MethodWriter.Label returnExit;
+
+  /*
+   * Called on every interpreted call. Counts the call and compiles the
+   * function once it's hot, returns the compiled code or null if the
+   * function stays in the interpreter. Methods are called with the receiver
+   * in front of the arguments.
+   */
+  CompiledFunction tierUp(Expr.Function declaration, boolean isMethod) {
+    FunctionProfile profile = declaration.profile;
+    if (profile.tier != FunctionProfile.Tier.INTERPRETED) return profile.code;
+    if (threshold == 0 || ++profile.calls < threshold) return null;
+
+    tiered.add(profile);
+    try {
+      profile.code = compile(profile.name, declaration, isMethod);
+      profile.tier = FunctionProfile.Tier.COMPILED;
+    } catch (Unsupported e) {
+      profile.tier = FunctionProfile.Tier.UNSUPPORTED;
+      profile.reason = e.getMessage();
+    } catch (LinkageError | IllegalArgumentException | ReflectiveOperationException e) {
+      // A class the JVM won't load shouldn't break the program, the
+      // interpreter can run it. Anything else, like running out of stack or
+      // memory, isn't the function's fault and goes on up.
+      profile.tier = FunctionProfile.Tier.UNSUPPORTED;
+      profile.reason = "failed to load: " + e;
+    }
+    return profile.code;
+  }
+
+  private CompiledFunction compile(String name, Expr.Function function, boolean isMethod)
+      throws ReflectiveOperationException {
+    CompiledFunction compiled;
+    try {
+      compiled = compile(name, function, isMethod, true);
+    } catch (Unsupported e) {
+      // Inlined bodies can make it too large, try again without them
+      if (inlinedHere.isEmpty()) throw e;
+      compiled = compile(name, function, isMethod, false);
+    }
+
+    for (FunctionProfile profile : inlinedHere) {
+      if (profile.inlined++ == 0) inlined.add(profile);
+      inlinedSites++;
+    }
+    return compiled;
+  }
+
+  private CompiledFunction compile(String name, Expr.Function function, boolean isMethod,
+      boolean shouldInline) throws ReflectiveOperationException {
+    className = PACKAGE + "Compiled$" + name.replaceAll("[^A-Za-z0-9_]", "_");
+    ClassWriter writer = new ClassWriter(className, OBJECT, PACKAGE + "CompiledFunction");
+    writer.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_FINAL, "constants", "[Ljava/lang/Object;");
+
+    // Constructor stores the constants array
+    MethodWriter init = writer.method(ClassWriter.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", 2);
+    init.load(0);
+    init.invokeSpecial(OBJECT, "<init>", "()V");
+    init.load(0);
+    init.load(1);
+    init.op2(PUTFIELD, writer.fieldRef(className, "constants", "[Ljava/lang/Object;"), -2);
+    init.op(RETURN, 0);
+
+    code = writer.method(ClassWriter.ACC_PUBLIC, "call", CALL_DESCRIPTOR, FIRST_LOCAL);
+    constants = new ArrayList<>();
+    loopExits = new ArrayList<>();
+    this.shouldInline = shouldInline;
+    functions = new ArrayList<>();
+    functions.add(function);
+    inlinedHere = new ArrayList<>();
+    frame = FIRST_LOCAL;
+    nextLocal = FIRST_LOCAL + function.slots;
+    upvalues = null;
+    returnExit = null;
+
+    // The receiver and parameters take the first slots of the frame
+    int arguments = function.params.size() + (isMethod ? 1 : 0);
+    if (nextLocal > MAX_LOCALS) throw new Unsupported("too many local variables");
+    // Every local starts out as nil so the verifier never sees an unset one
+    for (int local = FIRST_LOCAL; local < FIRST_LOCAL + function.slots; local++) {
+      code.op(ACONST_NULL, 1);
+      code.store(local);
+    }
+    for (int i = 0; i < arguments; i++) {
+      code.load(ARGUMENTS);
+      code.pushInt(i);
+      code.op(AALOAD, -1);
+      code.store(FIRST_LOCAL + i);
+    }
+    compile(function.body);
+    code.op(ACONST_NULL, 1);
+    code.op(ARETURN, -1);
+
+    // Branch offsets are signed 16 bit
+    if (code.size() > Short.MAX_VALUE) throw new Unsupported("function is too large");
+
+    byte[] bytes = writer.toByteArray();
+    MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+    return (CompiledFunction)lookup.lookupClass()
+        .getDeclaredConstructor(Object[].class)
+        .newInstance((Object)constants.toArray());
+  }
+
+  private void compile(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      statement.accept(this);
+    }
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  // == Statements ==
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    if (stmt.slots != -1) throw new Unsupported("block has its own frame");
+    compile(stmt.statements);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    throw new Unsupported("declares class '" + stmt.name.lexeme + "'");
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    code.load(INTERPRETER);
+    compile(stmt.expression);
+    code.invokeStatic(RUNTIME, "discard", "(L" + PACKAGE + "Interpreter;Ljava/lang/Object;)V");
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    throw new Unsupported("declares function '" + stmt.name.lexeme + "'");
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    MethodWriter.Label elseBranch = code.newLabel();
+    MethodWriter.Label end = code.newLabel();
+
+    condition(stmt.condition);
+    code.jump(IFEQ, elseBranch);
+    stmt.thenBranch.accept(this);
+    code.jump(GOTO, end);
+    code.mark(elseBranch);
+    if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+    code.mark(end);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    code.load(INTERPRETER);
+    compile(stmt.expression);
+    code.invokeStatic(RUNTIME, "print", "(L" + PACKAGE + "Interpreter;Ljava/lang/Object;)V");
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      code.op(ACONST_NULL, 1);
+    } else {
+      compile(stmt.value);
+    }
+
+    if (returnExit != null) {
+      code.store(result);
+      code.jump(GOTO, returnExit);
+    } else {
+      code.op(ARETURN, -1);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) {
+      code.op(ACONST_NULL, 1);
+    } else {
+      compile(stmt.initializer);
+    }
+    code.store(frame + stmt.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    MethodWriter.Label start = code.newLabel();
+    MethodWriter.Label exit = code.newLabel();
+
+    code.mark(start);
+    condition(stmt.condition);
+    code.jump(IFEQ, exit);
+    loopExits.add(exit);
+    stmt.body.accept(this);
+    loopExits.remove(loopExits.size() - 1);
+    code.jump(GOTO, start);
+    code.mark(exit);
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    if (loopExits.isEmpty()) throw new Unsupported("'break' outside of a loop");
+    code.jump(GOTO, loopExits.get(loopExits.size() - 1));
+    return null;
+  }
+
+  // == Expressions ==
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    switch (expr.kind) {
+      case Resolver.LOCAL:
+        compile(expr.value);
+        code.op(DUP, 1);
+        code.store(frame + expr.slot);
+        break;
+      case Resolver.UPVALUE:
+        upvalue(expr.slot);
+        compile(expr.value);
+        code.invokeStatic(RUNTIME, "setCell",
+            "(L" + CELL + ";Ljava/lang/Object;)Ljava/lang/Object;");
+        break;
+      case Resolver.CELL:
+        throw new Unsupported("'" + expr.name.lexeme + "' is captured");
+      default:
+        code.load(INTERPRETER);
+        code.pushInt(expr.slot);
+        constant(expr.name, TOKEN);
+        compile(expr.value);
+        code.invokeStatic(RUNTIME, "setGlobal",
+            "(L" + PACKAGE + "Interpreter;IL" + TOKEN + ";Ljava/lang/Object;)Ljava/lang/Object;");
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    switch (expr.operator.type) {
+      case COMMA:
+        compile(expr.left);
+        code.op(POP, -1);
+        compile(expr.right);
+        return null;
+      case BANG_EQUAL:
+      case EQUAL_EQUAL:
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        // Comparisons produce a JVM boolean, box it
+        condition(expr);
+        code.invokeStatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+        return null;
+      default:
+        break;
+    }
+
+    compile(expr.left);
+    compile(expr.right);
+    constant(expr.operator, TOKEN);
+    String descriptor = "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;";
+    switch (expr.operator.type) {
+      case MINUS: code.invokeStatic(RUNTIME, "subtract", descriptor); break;
+      case PLUS: code.invokeStatic(RUNTIME, "add", descriptor); break;
+      case SLASH: code.invokeStatic(RUNTIME, "divide", descriptor); break;
+      case STAR: code.invokeStatic(RUNTIME, "multiply", descriptor); break;
+      default:
+        throw new Unsupported("operator " + expr.operator.type);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    // Methods called right away are invoked on their receiver without binding
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get callee = (Expr.Get)expr.callee;
+      compile(callee.object);
+      code.op(DUP, 1);
+      constant(callee.name, TOKEN);
+      constant(callee.cache, CACHE);
+      constant(expr.paren, TOKEN);
+      code.invokeStatic(RUNTIME, "method", "(Ljava/lang/Object;L" + TOKEN + ";L" + CACHE + ";L" +
+          TOKEN + ";)Ljava/lang/Object;");
+      invoke(expr);
+      return null;
+    }
+    if (expr.callee instanceof Expr.Super) {
+      Expr.Super callee = (Expr.Super)expr.callee;
+      receiver(callee);
+      superMethod(callee);
+      invoke(expr);
+      return null;
+    }
+
+    LoxFunction target = inlineTarget(expr);
+    if (target != null) {
+      inline(expr, target);
+      return null;
+    }
+
+    compile(expr.callee);
+    checkCallable(expr);
+    arguments(expr);
+    call(expr);
+    return null;
+  }
+
+  private void checkCallable(Expr.Call expr) {
+    constant(expr.paren, TOKEN);
+    code.invokeStatic(RUNTIME, "checkCallable",
+        "(Ljava/lang/Object;L" + TOKEN + ";)L" + PACKAGE + "LoxCallable;");
+  }
+
+  // Expects the callee and the array of arguments on the stack
+  private void call(Expr.Call expr) {
+    code.load(INTERPRETER);
+    constant(expr.paren, TOKEN);
+    code.invokeStatic(RUNTIME, "call", "(L" + PACKAGE + "LoxCallable;[Ljava/lang/Object;L" +
+        PACKAGE + "Interpreter;L" + TOKEN + ";)Ljava/lang/Object;");
+  }
+
+  // The function the site always called if it's worth inlining there
+  private LoxFunction inlineTarget(Expr.Call expr) {
+    if (!shouldInline || !(expr.profile.target instanceof LoxFunction)) return null;
+
+    // Bound methods and classes aren't LoxFunctions
+    LoxFunction target = (LoxFunction)expr.profile.target;
+    Expr.Function declaration = target.declaration;
+    FunctionProfile profile = declaration.profile;
+    if (target.isMethod || target.arity() != expr.arguments.size()) return null;
+    // Not called yet, so its body isn't there to inline
+    if (declaration.body == null) return null;
+    if (profile.size > INLINE_SIZE || profile.hasClosures || profile.isRecursive) return null;
+    // A loop costs more than the call, and the body HotSpot gets for the
+    // caller is better off without it
+    if (profile.hasLoops) return null;
+    if (functions.contains(declaration)) return null;
+    // One more local for the result
+    if (nextLocal + 1 + declaration.slots > MAX_LOCALS) return null;
+    return target;
+  }
+
+  /*
+   * Compiles the body of `target` in place of a call to it. Its frame
+   * starts at the next free local, after the one for the result. The
+   * arguments go straight into the parameters' locals, if the callee isn't
+   * `target` they're copied into an array for a real call instead.
+   */
+  private void inline(Expr.Call expr, LoxFunction target) {
+    Expr.Function function = target.declaration;
+    MethodWriter.Label checked = code.newLabel();
+    MethodWriter.Label call = code.newLabel();
+    MethodWriter.Label exit = code.newLabel();
+    MethodWriter.Label end = code.newLabel();
+
+    compile(expr.callee);
+    int stack = code.stack();
+    // Same order as a call: the callee fails before the arguments run
+    code.op(DUP, 1);
+    constant(target, null);
+    code.jump(IF_ACMPEQ, checked);
+    checkCallable(expr);
+    code.mark(checked);
+
+    int callerNext = nextLocal;
+    int calleeResult = nextLocal;
+    int calleeFrame = nextLocal + 1;
+    nextLocal = calleeFrame + function.slots;
+
+    // Arguments still belong to the caller
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      compile(expr.arguments.get(i));
+      code.store(calleeFrame + i);
+    }
+
+    code.op(DUP, 1);
+    constant(target, null);
+    code.jump(IF_ACMPNE, call);
+    code.op(POP, -1);
+
+    // Locals the callee doesn't get as a parameter start out as nil
+    for (int local = calleeFrame + expr.arguments.size(); local < nextLocal; local++) {
+      code.op(ACONST_NULL, 1);
+      code.store(local);
+    }
+
+    int callerFrame = frame;
+    Cell[] callerUpvalues = upvalues;
+    int callerResult = result;
+    MethodWriter.Label callerExit = returnExit;
+    List<MethodWriter.Label> callerLoops = loopExits;
+    frame = calleeFrame;
+    upvalues = target.upvalues;
+    result = calleeResult;
+    returnExit = exit;
+    loopExits = new ArrayList<>();
+    functions.add(function);
+
+    compile(function.body);
+    // Falling off the end returns nil
+    code.op(ACONST_NULL, 1);
+    code.store(result);
+
+    functions.remove(functions.size() - 1);
+    frame = callerFrame;
+    upvalues = callerUpvalues;
+    result = callerResult;
+    returnExit = callerExit;
+    loopExits = callerLoops;
+    nextLocal = callerNext;
+    inlinedHere.add(function.profile);
+
+    code.mark(exit);
+    code.load(calleeResult);
+    code.jump(GOTO, end);
+
+    // Something else is bound to the name now
+    code.mark(call);
+    code.setStack(stack);
+    code.op2(CHECKCAST, code.owner.classRef(PACKAGE + "LoxCallable"), 0);
+    code.pushInt(expr.arguments.size());
+    code.op2(ANEWARRAY, code.owner.classRef(OBJECT), 0);
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      code.op(DUP, 1);
+      code.pushInt(i);
+      code.load(calleeFrame + i);
+      code.op(AASTORE, -3);
+    }
+    call(expr);
+    code.mark(end);
+  }
+
+  // Expects the receiver and the callee on the stack
+  private void invoke(Expr.Call expr) {
+    arguments(expr);
+    code.load(INTERPRETER);
+    constant(expr.paren, TOKEN);
+    code.invokeStatic(RUNTIME, "invoke", "(Ljava/lang/Object;Ljava/lang/Object;[Ljava/lang/Object;L" +
+        PACKAGE + "Interpreter;L" + TOKEN + ";)Ljava/lang/Object;");
+  }
+
+  // Pushes the arguments as an array
+  private void arguments(Expr.Call expr) {
+    code.pushInt(expr.arguments.size());
+    code.op2(ANEWARRAY, code.owner.classRef(OBJECT), 0);
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      code.op(DUP, 1);
+      code.pushInt(i);
+      compile(expr.arguments.get(i));
+      code.op(AASTORE, -3);
+    }
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    constant(expr.name, TOKEN);
+    constant(expr.cache, CACHE);
+    code.invokeStatic(RUNTIME, "get",
+        "(Ljava/lang/Object;L" + TOKEN + ";L" + CACHE + ";)Ljava/lang/Object;");
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      code.op(ACONST_NULL, 1);
+    } else if (expr.value instanceof Boolean) {
+      String name = (Boolean)expr.value ? "TRUE" : "FALSE";
+      code.op2(GETSTATIC, code.owner.fieldRef("java/lang/Boolean", name, "Ljava/lang/Boolean;"), 1);
+    } else {
+      constant(expr.value, null);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    MethodWriter.Label end = code.newLabel();
+
+    // Leaves the left operand as the result if it short-circuits
+    compile(expr.left);
+    code.op(DUP, 1);
+    code.invokeStatic(RUNTIME, "isTruthy", "(Ljava/lang/Object;)Z");
+    code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+    code.op(POP, -1);
+    compile(expr.right);
+    code.mark(end);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    constant(expr.name, TOKEN);
+    code.invokeStatic(RUNTIME, "checkInstance",
+        "(Ljava/lang/Object;L" + TOKEN + ";)L" + PACKAGE + "LoxInstance;");
+    compile(expr.value);
+    constant(expr.cache, CACHE);
+    code.invokeStatic(RUNTIME, "set",
+        "(L" + PACKAGE + "LoxInstance;Ljava/lang/Object;L" + CACHE + ";)Ljava/lang/Object;");
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    receiver(expr);
+    superMethod(expr);
+    code.invokeStatic(RUNTIME, "bind", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+    return null;
+  }
+
+  private void superMethod(Expr.Super expr) {
+    variable(expr.keyword, expr.kind, expr.slot);
+    constant(expr.method, TOKEN);
+    code.invokeStatic(RUNTIME, "superMethod",
+        "(Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;");
+  }
+
+  private void receiver(Expr.Super expr) {
+    variable(expr.keyword, expr.thisKind, expr.thisSlot);
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    variable(expr.keyword, expr.kind, expr.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+    if (expr.operator.type == TokenType.BANG) {
+      code.invokeStatic(RUNTIME, "not", "(Ljava/lang/Object;)Ljava/lang/Object;");
+    } else {
+      constant(expr.operator, TOKEN);
+      code.invokeStatic(RUNTIME, "negate", "(Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;");
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    variable(expr.name, expr.kind, expr.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionExpr(Expr.Function expr) {
+    throw new Unsupported("creates a closure");
+  }
+
+  // == Helpers ==
+
+  /*
+   * Pushes a JVM boolean for a condition. Comparisons call the runtime
+   * directly so `if (a < b)` never boxes the result.
+   */
+  private void condition(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      String name = null;
+      switch (binary.operator.type) {
+        case GREATER: name = "greater"; break;
+        case GREATER_EQUAL: name = "greaterEqual"; break;
+        case LESS: name = "less"; break;
+        case LESS_EQUAL: name = "lessEqual"; break;
+        case EQUAL_EQUAL:
+        case BANG_EQUAL:
+          compile(binary.left);
+          compile(binary.right);
+          code.invokeStatic(RUNTIME, "isEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+          if (binary.operator.type == TokenType.BANG_EQUAL) negate();
+          return;
+        default:
+          break;
+      }
+
+      if (name != null) {
+        compile(binary.left);
+        compile(binary.right);
+        constant(binary.operator, TOKEN);
+        code.invokeStatic(RUNTIME, name, "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)Z");
+        return;
+      }
+    }
+
+    compile(expr);
+    code.invokeStatic(RUNTIME, "isTruthy", "(Ljava/lang/Object;)Z");
+  }
+
+  // Turns the JVM boolean on top of the stack into its opposite
+  private void negate() {
+    MethodWriter.Label isTrue = code.newLabel();
+    MethodWriter.Label end = code.newLabel();
+    code.jump(IFNE, isTrue);
+    code.pushInt(1);
+    code.jump(GOTO, end);
+    code.mark(isTrue);
+    code.setStack(code.stack() - 1);
+    code.pushInt(0);
+    code.mark(end);
+  }
+
+  // Pushes a cell the function being compiled captured
+  private void upvalue(int index) {
+    if (upvalues == null) {
+      code.load(UPVALUES);
+    } else {
+      constant(upvalues, CELLS);
+    }
+    code.pushInt(index);
+    code.op(AALOAD, -1);
+  }
+
+  private void variable(Token name, int kind, int slot) {
+    switch (kind) {
+      case Resolver.LOCAL:
+        code.load(frame + slot);
+        break;
+      case Resolver.UPVALUE:
+        upvalue(slot);
+        code.op2(GETFIELD, code.owner.fieldRef(CELL, "value", "Ljava/lang/Object;"), 0);
+        break;
+      case Resolver.CELL:
+        // Functions creating closures aren't compiled
+        throw new Unsupported("'" + name.lexeme + "' is captured");
+      default:
+        code.load(INTERPRETER);
+        code.pushInt(slot);
+        constant(name, TOKEN);
+        code.invokeStatic(RUNTIME, "getGlobal",
+            "(L" + PACKAGE + "Interpreter;IL" + TOKEN + ";)Ljava/lang/Object;");
+    }
+  }
+
+  // Loads an entry of the constants array, cast to `type` unless it's null
+  private void constant(Object value, String type) {
+    int index = constants.indexOf(value);
+    if (index == -1 || constants.get(index) != value) {
+      constants.add(value);
+      index = constants.size() - 1;
+    }
+
+    code.load(THIS);
+    code.op2(GETFIELD, code.owner.fieldRef(className, "constants", "[Ljava/lang/Object;"), 0);
+    code.pushInt(index);
+    code.op(AALOAD, -1);
+    if (type != null) code.op2(CHECKCAST, code.owner.classRef(type), 0);
+  }
+}
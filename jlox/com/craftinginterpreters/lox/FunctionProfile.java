@@ -0,0 +1,51 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * Call counter and execution tier of a function declaration. It's attached
+ * to the Expr.Function by the Resolver so every LoxFunction created from
+ * the same declaration (closures, bound methods) shares it. The Resolver
+ * also records what FunctionJit needs to know to inline the function.
+ * Every context runs its own copy of a Program, so each has its own.
+ */
+class FunctionProfile {
+  enum Tier { INTERPRETED, COMPILED, UNSUPPORTED }
+
+  final String name;
+  int calls = 0;
+  Tier tier = Tier.INTERPRETED;
+  CompiledFunction code = null;
+  // Why FunctionJit refused to compile the function
+  String reason = null;
+
+  // Number of nodes in the body
+  int size = 0;
+  // Declares functions or classes, so its frame can't become JVM locals
+  boolean hasClosures = false;
+  // Calls itself by name
+  boolean isRecursive = false;
+  // Has a `while` or `for`
+  boolean hasLoops = false;
+  // Call sites the JIT replaced with the body
+  int inlined = 0;
+
+  FunctionProfile(String name) {
+    this.name = name;
+  }
+
+  // For a linked copy of the declaration, keeps what the Resolver measured
+  FunctionProfile(FunctionProfile template) {
+    this(template.name);
+    size = template.size;
+    hasClosures = template.hasClosures;
+    isRecursive = template.isRecursive;
+    hasLoops = template.hasLoops;
+  }
+
+  @Override
+  public String toString() {
+    String text = name + ": " + tier.name().toLowerCase() + " after " + calls + " calls";
+    if (reason != null) text += " (" + reason + ")";
+    if (inlined > 0) text += ", inlined at " + inlined + " call sites";
+    return text;
+  }
+}
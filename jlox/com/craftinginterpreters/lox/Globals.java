@@ -0,0 +1,87 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Global variables of all engines. The Linker (and BytecodeCompiler for
+ * the VM) gives every global name a slot the first time it sees it, so
+ * reading and assigning a global is an array access instead of two map
+ * lookups.
+ *
+ * A name can get its slot before it's defined: a function using a global
+ * that's declared further down, or a REPL line using one from a later
+ * line. The slot stays UNDEFINED until then and using it is the same
+ * "Undefined variable" error as before. Slots are never reused, so the
+ * REPL keeps them between lines.
+ */
+class Globals {
+  private static final Object UNDEFINED = new Object();
+
+  private final Map<Symbol, Integer> slots = new HashMap<>();
+  private Symbol[] names = new Symbol[16];
+  private Object[] values = new Object[16];
+  private int count = 0;
+
+  Globals() {
+    Arrays.fill(values, UNDEFINED);
+  }
+
+  int slot(Symbol name) {
+    Integer slot = slots.get(name);
+    if (slot != null) return slot;
+
+    if (count == values.length) {
+      names = Arrays.copyOf(names, count * 2);
+      values = Arrays.copyOf(values, count * 2);
+      Arrays.fill(values, count, values.length, UNDEFINED);
+    }
+    names[count] = name;
+    slots.put(name, count);
+    return count++;
+  }
+
+  // The name's slot, -1 instead of giving it one
+  int find(Symbol name) {
+    Integer slot = slots.get(name);
+    return slot == null ? -1 : slot;
+  }
+
+  Symbol name(int slot) {
+    return names[slot];
+  }
+
+  boolean isDefined(int slot) {
+    return values[slot] != UNDEFINED;
+  }
+
+  // Callers check isDefined first
+  Object value(int slot) {
+    return values[slot];
+  }
+
+  Object get(int slot, Token name) {
+    Object value = values[slot];
+    if (value == UNDEFINED) {
+      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+    return value;
+  }
+
+  void assign(int slot, Token name, Object value) {
+    if (values[slot] == UNDEFINED) {
+      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+    values[slot] = value;
+  }
+
+  void define(int slot, Object value) {
+    values[slot] = value;
+  }
+
+  // For natives
+  void define(String name, Object value) {
+    define(slot(Symbol.of(name)), value);
+  }
+}
@@ -1,35 +1,50 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-  final Map<String, Object> globals = new HashMap<>();
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
+  // Returned by evaluateNumeric when the result is the unboxed `number`
+  private static final Object NUMBER = new Object();
+  // How a statement completed when it didn't just fall through, which is null.
+  // The value of `return` is left in `returnValue`.
+  static final Object BREAK = new Object();
+  static final Object RETURN = new Object();
+  private static final Token HOST = new Token(TokenType.IDENTIFIER, "<host>", null, 0);
+
+  final Globals globals = new Globals();
   private Environment environment;
-  private final Map<Object, Integer> locals = new HashMap<>();
-  private final Map<Object, Integer> slots = new HashMap<>();
   public Boolean isREPL = false;
-
-  Interpreter() {
-    // Define native functions in globals
-    globals.put("clock", new LoxCallable() {
-      @Override
-      public int arity() {
-        return 0;
-      }
-
-      @Override
-      public Object call(Interpreter interpreter, List<Object> arguments) {
-        return (double)System.currentTimeMillis() / 1000.0;
-      }
-
-      @Override
-      public String toString() {
-        return "<native fn>";
-      }
-    });
+  // Compiles hot functions to JVM bytecode
+  final FunctionJit jit = new FunctionJit();
+  // What the operators of the `nodes` engine specialized on
+  final Specializations specializations = new Specializations();
+  // Result of the last evaluateNumeric call that returned NUMBER
+  private double number;
+  // Value of the last `return` that completed with RETURN
+  Object returnValue;
+
+  static final int DEFAULT_MAX_DEPTH = 1000000;
+  // Calls that haven't returned yet and how many of them there can be. The
+  // VM keeps its frames on the heap, the other engines on the JVM stack,
+  // which usually runs out before `maxDepth`.
+  int depth = 0;
+  int maxDepth = DEFAULT_MAX_DEPTH;
+
+  // Line of the innermost call, natives report their errors there
+  int callLine;
+
+  // Where `print` goes, block buffered unless Lox is told otherwise, and
+  // where errors are reported
+  final Output output;
+  final Reporter errors;
+
+  Interpreter(PrintStream out, PrintStream err) {
+    output = new Output(out, false);
+    errors = new Reporter(err, output);
+    Natives.define(globals);
   }
 
   void interpret(List<Stmt> statements) {
@@ -38,7 +53,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         execute(statement);
       }
     } catch (RuntimeError error) {
-      Lox.runtimeError(error);
+      errors.runtimeError(error);
+    } catch (StackOverflowError error) {
+      errors.runtimeError(stackOverflow());
+    }
+  }
+
+  // Runs a program compiled by NodeCompiler instead of walking the AST
+  void interpret(Node program) {
+    try {
+      program.execute(null);
+    } catch (RuntimeError error) {
+      errors.runtimeError(error);
+    } catch (StackOverflowError error) {
+      errors.runtimeError(stackOverflow());
     }
   }
 
@@ -69,40 +97,46 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     Object value = evaluate(expr.value);
-    ((LoxInstance)object).set(expr.name, value);
+    ((LoxInstance)object).set(expr.cache, value);
     return value;
   }
 
   @Override
   public Object visitSuperExpr(Expr.Super expr) {
-    int distance = locals.get(expr);
-    LoxClass superclass = (LoxClass)environment.getAt(distance, slots.get(expr));
+    return superMethod(expr).bind(superReceiver(expr));
+  }
 
-    // `this` will be the first slot in the environment
-    LoxInstance object = (LoxInstance)environment.getAt(distance - 1, 0);
-    LoxFunction method = superclass.findMethod(expr.method.lexeme);
+  private LoxFunction superMethod(Expr.Super expr) {
+    LoxClass superclass = (LoxClass)lookUpVariable(expr.keyword, expr.kind, expr.slot);
+    LoxFunction method = superclass.findMethod(expr.method.symbol);
 
     if (method == null) {
       throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
     }
 
-    return method.bind(object);
+    return method;
+  }
+
+  private LoxInstance superReceiver(Expr.Super expr) {
+    return (LoxInstance)lookUpVariable(expr.keyword, expr.thisKind, expr.thisSlot);
   }
 
   @Override
   public Object visitThisExpr(Expr.This expr) {
-    return lookUpVariable(expr.keyword, expr);
+    return lookUpVariable(expr.keyword, expr.kind, expr.slot);
   }
 
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
+    if (expr.operator.type == TokenType.MINUS) {
+      Object value = evaluateNumeric(expr);
+      return value == NUMBER ? (Object)number : value;
+    }
+
     Object right = evaluate(expr.right);
     switch (expr.operator.type) {
       case BANG:
         return !isTruthy(right);
-      case MINUS:
-        checkNumberOperand(expr.operator, right);
-        return -(double)right;
       default:
         return null;
     }
@@ -110,48 +144,46 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    return lookUpVariable(expr.name, expr);
+    return lookUpVariable(expr.name, expr.kind, expr.slot);
   }
 
-  private Object lookUpVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
-
-    if (distance != null) {
-      return environment.getAt(distance, slots.get(expr));
-    } else {
-      if (globals.containsKey(name.lexeme)) {
-        return globals.get(name.lexeme);
-      } else {
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-      }
+  private Object lookUpVariable(Token name, int kind, int slot) {
+    switch (kind) {
+      case Resolver.LOCAL: return environment.get(slot);
+      case Resolver.CELL: return environment.cell(slot).value;
+      case Resolver.UPVALUE: return environment.upvalues[slot].value;
+      default: return globals.get(slot, name);
     }
   }
 
-  private void checkNumberOperand(Token operator, Object operand) {
+  static void checkNumberOperand(Token operator, Object operand) {
     if (operand instanceof Double) return;
     throw new RuntimeError(operator, "Operand must be a number.");
   }
 
-  private void checkNumberOperands(Token operator, Object left, Object right) {
+  static void checkNumberOperands(Token operator, Object left, Object right) {
     if (left instanceof Double && right instanceof Double) return;
     throw new RuntimeError(operator, "Operands must be numbers.");
   }
 
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) return false;
     if (object instanceof Boolean) return (boolean)object;
     return true;
   }
 
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     if (a == null && b == null) return true;
     if (a == null) return false;
+    // A String isn't equal to anything but a String, a Rope compares text
+    if (b instanceof Rope) return b.equals(a);
     return a.equals(b);
   }
 
-  private String stringify(Object object) {
+  static String stringify(Object object) {
     if (object == null) return "null";
     if (object instanceof Double) {
+      if (printsAsInt((double)object)) return Integer.toString((int)(double)object);
       String text = object.toString();
       return text.endsWith(".0")
         ? text.substring(0, text.length() - 2)
@@ -160,6 +192,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return object.toString();
   }
 
+  // Whole numbers print as ints, up to 10^7 where Double.toString switches
+  // to scientific notation. -0 keeps its sign
+  static boolean printsAsInt(double number) {
+    int whole = (int)number;
+    return whole == number && whole > -10_000_000 && whole < 10_000_000
+        && (whole != 0 || 1 / number > 0);
+  }
+
   @Override
   public Object visitGroupingExpr(Expr.Grouping expr) {
     return evaluate(expr.expression);
@@ -169,36 +209,192 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return expr.accept(this);
   }
 
-  private void execute(Stmt stmt) {
-    stmt.accept(this);
+  /*
+   * Evaluates an expression keeping numbers unboxed through arithmetic
+   * chains and local variables. Returns NUMBER and leaves the value in
+   * `number` if the result is an unboxed number, otherwise the value itself
+   * (which may still be a boxed Double).
+   */
+  private Object evaluateNumeric(Expr expr) {
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable)expr;
+      if (variable.kind == Resolver.LOCAL) {
+        if (!environment.isNumber(variable.slot)) return environment.get(variable.slot);
+        number = environment.getNumber(variable.slot);
+        return NUMBER;
+      }
+    } else if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      switch (binary.operator.type) {
+        case MINUS:
+        case PLUS:
+        case SLASH:
+        case STAR:
+          return arithmetic(binary);
+        default:
+          break;
+      }
+    } else if (expr instanceof Expr.Literal) {
+      Object value = ((Expr.Literal)expr).value;
+      if (!(value instanceof Double)) return value;
+      number = (double)value;
+      return NUMBER;
+    } else if (expr instanceof Expr.Grouping) {
+      return evaluateNumeric(((Expr.Grouping)expr).expression);
+    } else if (expr instanceof Expr.Assign) {
+      return assign((Expr.Assign)expr);
+    } else if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary)expr;
+      if (unary.operator.type == TokenType.MINUS) {
+        Object right = evaluateNumeric(unary.right);
+        if (right == NUMBER) {
+          number = -number;
+        } else {
+          checkNumberOperand(unary.operator, right);
+          number = -(double)right;
+        }
+        return NUMBER;
+      }
+    }
+
+    return evaluate(expr);
+  }
+
+  // Conditions of `if` and loops, comparisons don't box their operands
+  private boolean evaluateCondition(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      switch (((Expr.Binary)expr).operator.type) {
+        case BANG_EQUAL:
+        case EQUAL_EQUAL:
+        case GREATER:
+        case GREATER_EQUAL:
+        case LESS:
+        case LESS_EQUAL:
+          return compare((Expr.Binary)expr);
+        default:
+          break;
+      }
+    } else if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)expr;
+      if (logical.operator.type == TokenType.OR) {
+        return evaluateCondition(logical.left) || evaluateCondition(logical.right);
+      }
+      return evaluateCondition(logical.left) && evaluateCondition(logical.right);
+    } else if (expr instanceof Expr.Grouping) {
+      return evaluateCondition(((Expr.Grouping)expr).expression);
+    } else if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+      return !evaluateCondition(((Expr.Unary)expr).right);
+    }
+
+    return isTruthy(evaluate(expr));
   }
 
-  void resolve(Expr expr, int depth, int slot) {
-    locals.put(expr, depth);
-    slots.put(expr, slot);
+  // `+ - * /`, operands that aren't both numbers take the generic path
+  private Object arithmetic(Expr.Binary expr) {
+    Object left = evaluateNumeric(expr.left);
+    double a = left == NUMBER ? number : 0;
+    Object right = evaluateNumeric(expr.right);
+    double b = right == NUMBER ? number : 0;
+
+    if (left instanceof Double) {
+      a = (double)left;
+      left = NUMBER;
+    }
+    if (right instanceof Double) {
+      b = (double)right;
+      right = NUMBER;
+    }
+
+    if (left == NUMBER && right == NUMBER) {
+      switch (expr.operator.type) {
+        case MINUS: number = a - b; break;
+        case PLUS: number = a + b; break;
+        case SLASH:
+          if (b == 0) throw new RuntimeError(expr.operator, "Can't divide by zero.");
+          number = a / b;
+          break;
+        default: number = a * b; break;
+      }
+      return NUMBER;
+    }
+
+    return binary(expr.operator, left == NUMBER ? (Object)a : left, right == NUMBER ? (Object)b : right);
   }
 
-  void executeBlock(List<Stmt> statements, Environment environment) {
+  // Comparisons and equality
+  private boolean compare(Expr.Binary expr) {
+    Object left = evaluateNumeric(expr.left);
+    double a = left == NUMBER ? number : 0;
+    Object right = evaluateNumeric(expr.right);
+    double b = right == NUMBER ? number : 0;
+
+    if (left instanceof Double) {
+      a = (double)left;
+      left = NUMBER;
+    }
+    if (right instanceof Double) {
+      b = (double)right;
+      right = NUMBER;
+    }
+
+    if (left == NUMBER && right == NUMBER) {
+      switch (expr.operator.type) {
+        // Same as Double.equals, NaN is equal to itself and 0 isn't -0
+        case BANG_EQUAL: return Double.doubleToLongBits(a) != Double.doubleToLongBits(b);
+        case EQUAL_EQUAL: return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+        case GREATER: return a > b;
+        case GREATER_EQUAL: return a >= b;
+        case LESS: return a < b;
+        default: return a <= b;
+      }
+    }
+
+    return (boolean)binary(expr.operator, left == NUMBER ? (Object)a : left, right == NUMBER ? (Object)b : right);
+  }
+
+  private Object execute(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  /*
+   * Runs statements until one of them breaks or returns, that completion
+   * is passed up to the enclosing loop or function instead of unwinding
+   * the Java stack with an exception.
+   */
+  Object executeBlock(List<Stmt> statements, Environment environment) {
     Environment previous = this.environment;
 
     try {
       this.environment = environment;
-      for (Stmt statement : statements) {
-        execute(statement);
-      }
+      return executeStatements(statements);
     } finally {
       this.environment = previous;
     }
   }
 
-  @Override
-  public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
+  // Indexed so `for` bodies, which the parser builds with Arrays.asList,
+  // don't allocate an iterator per loop iteration
+  private Object executeStatements(List<Stmt> statements) {
+    for (int i = 0; i < statements.size(); i++) {
+      Object completion = execute(statements.get(i));
+      if (completion != null) return completion;
+    }
     return null;
   }
 
   @Override
-  public Void visitClassStmt(Stmt.Class stmt) {
+  public Object visitBlockStmt(Stmt.Block stmt) {
+    // Only blocks at the top level have a frame of their own
+    if (stmt.slots != -1) {
+      return executeBlock(stmt.statements, new Environment(null, stmt.slots));
+    }
+
+    // The variables live in the function's frame
+    return executeStatements(stmt.statements);
+  }
+
+  @Override
+  public Object visitClassStmt(Stmt.Class stmt) {
     Object superclass = null;
     if (stmt.superclass != null) {
       superclass = evaluate(stmt.superclass);
@@ -209,126 +405,158 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     // Because we define class first it can reference itself inside it's own methods
-    define(stmt.name, null);
+    define(stmt.kind, stmt.slot, null);
 
+    // Methods capture `super` from its slot, at the top level it has a frame
+    // of its own
+    Environment frame = environment;
     if (stmt.superclass != null) {
-      environment = new Environment(environment);
-      environment.define(superclass);
+      if (frame == null) frame = new Environment(null, 1);
+      frame.assign(stmt.superSlot, new Cell(superclass));
     }
 
-    Map<String, LoxFunction> methods = new HashMap<>();
+    Map<Symbol, LoxFunction> methods = new HashMap<>();
     for (Stmt.Function method : stmt.methods) {
-      LoxFunction function = new LoxFunction(stmt.name.lexeme, method.function, environment, method.name.lexeme.equals("init"));
-      methods.put(method.name.lexeme, function);
+      LoxFunction function = new LoxFunction(stmt.name.lexeme, method.function,
+          capture(frame, method.function), true, method.name.lexeme.equals("init"));
+      methods.put(method.name.symbol, function);
     }
 
     LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods);
 
-    if (superclass != null) {
-      environment = environment.enclosing;
-    }
-
-    Integer distance = locals.get(stmt);
-    if (distance != null) {
-      environment.assignAt(distance, slots.get(stmt), klass);
+    if (stmt.kind == Resolver.CELL) {
+      environment.cell(stmt.slot).value = klass;
     } else {
-      globals.put(stmt.name.lexeme, klass);
+      define(stmt.kind, stmt.slot, klass);
     }
 
     return null;
   }
 
   @Override
-  public Void visitExpressionStmt(Stmt.Expression stmt) {
-    Object value = evaluate(stmt.expression);
+  public Object visitExpressionStmt(Stmt.Expression stmt) {
+    // The value is usually discarded, so don't box it
+    Object value = evaluateNumeric(stmt.expression);
     // Print expression in REPL after executing it
     if (this.isREPL) {
-      System.out.println(stringify(value));
+      output.println(value == NUMBER ? (Object)number : value);
     }
     return null;
   }
 
   @Override
-  public Void visitFunctionStmt(Stmt.Function stmt) {
+  public Object visitFunctionStmt(Stmt.Function stmt) {
+    // A function calling itself captures its own cell, so that comes first
+    if (stmt.kind == Resolver.CELL) {
+      Cell cell = newCell(stmt.slot);
+      cell.value = new LoxFunction(stmt.name.lexeme, stmt.function,
+          capture(environment, stmt.function), false, false);
+      return null;
+    }
+
     // Define function object
-    LoxFunction function = new LoxFunction(stmt.name.lexeme, stmt.function, environment, false);
+    LoxFunction function = new LoxFunction(stmt.name.lexeme, stmt.function,
+        capture(environment, stmt.function), false, false);
     // Bind it to a name in the environment
-    define(stmt.name, function);
+    define(stmt.kind, stmt.slot, function);
     return null;
   }
 
   @Override
   public Object visitFunctionExpr(Expr.Function expr) {
-    return new LoxFunction(null, expr, environment, false);
+    return new LoxFunction(null, expr, capture(environment, expr), false, false);
+  }
+
+  // Upvalues of a closure of `function` created in `frame`, null for functions that capture
+  // nothing, which includes every function declared at the top level
+  private static Cell[] capture(Environment frame, Expr.Function function) {
+    if (function.captures.length == 0) return null;
+    return frame.capture(function.captures);
   }
 
   @Override
-  public Void visitIfStmt(Stmt.If stmt) {
-    if (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.thenBranch);
+  public Object visitIfStmt(Stmt.If stmt) {
+    if (evaluateCondition(stmt.condition)) {
+      return execute(stmt.thenBranch);
     } else if (stmt.elseBranch != null) {
-      execute(stmt.elseBranch);
+      return execute(stmt.elseBranch);
     }
     return null;
   }
 
   @Override
-  public Void visitPrintStmt(Stmt.Print stmt) {
-    Object value = evaluate(stmt.expression);
-    System.out.println(stringify(value));
+  public Object visitPrintStmt(Stmt.Print stmt) {
+    output.println(evaluate(stmt.expression));
     return null;
   }
 
   @Override
-  public Void visitReturnStmt(Stmt.Return stmt) {
-    Object value = null;
-    if (stmt.value != null) value = evaluate(stmt.value);
-    throw new Return(value);
+  public Object visitReturnStmt(Stmt.Return stmt) {
+    returnValue = null;
+    if (stmt.value != null) returnValue = evaluate(stmt.value);
+    return RETURN;
   }
 
   @Override
-  public Void visitVarStmt(Stmt.Var stmt) {
+  public Object visitVarStmt(Stmt.Var stmt) {
+    // A closure in the initializer can capture the variable already
+    if (stmt.kind == Resolver.CELL) {
+      Cell cell = newCell(stmt.slot);
+      if (stmt.initializer != null) cell.value = evaluate(stmt.initializer);
+      return null;
+    }
+
     Object value = null;
     if (stmt.initializer != null) {
-      value = evaluate(stmt.initializer);
+      value = evaluateNumeric(stmt.initializer);
+    }
+
+    if (value != NUMBER) {
+      define(stmt.kind, stmt.slot, value);
+    } else if (stmt.kind == Resolver.LOCAL) {
+      environment.assignNumber(stmt.slot, number);
+    } else {
+      globals.define(stmt.slot, number);
     }
-    define(stmt.name, value);
     return null;
   }
 
   @Override
-  public Void visitWhileStmt(Stmt.While stmt) {
-    while (isTruthy(evaluate(stmt.condition))) {
-      try {
-        execute(stmt.body);
-      } catch (Break e) {
-        break;
-      } catch (Exception e) {
-        throw e;
-      }
+  public Object visitWhileStmt(Stmt.While stmt) {
+    while (evaluateCondition(stmt.condition)) {
+      Object completion = execute(stmt.body);
+      if (completion == BREAK) break;
+      if (completion != null) return completion;
     }
     return null;
   }
 
   @Override
-  public Void visitBreakStmt(Stmt.Break stmt) {
-    throw new Break();
+  public Object visitBreakStmt(Stmt.Break stmt) {
+    return BREAK;
   }
 
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
-    Object value = evaluate(expr.value);
+    Object value = assign(expr);
+    return value == NUMBER ? (Object)number : value;
+  }
 
-    Integer distance = locals.get(expr);
+  // Returns NUMBER like evaluateNumeric when a number was stored unboxed
+  private Object assign(Expr.Assign expr) {
+    Object value = evaluateNumeric(expr.value);
 
-    if (distance != null) {
-      environment.assignAt(distance, slots.get(expr), value);
-    } else {
-      if (globals.containsKey(expr.name.lexeme)) {
-        globals.put(expr.name.lexeme, value);
-      } else {
-        throw new RuntimeError(expr.name, "Undefined variable '" + expr.name.lexeme + "'.");
-      }
+    if (value == NUMBER && expr.kind == Resolver.LOCAL) {
+      environment.assignNumber(expr.slot, number);
+      return NUMBER;
+    }
+
+    if (value == NUMBER) value = number;
+    switch (expr.kind) {
+      case Resolver.LOCAL: environment.assign(expr.slot, value); break;
+      case Resolver.CELL: environment.cell(expr.slot).value = value; break;
+      case Resolver.UPVALUE: environment.upvalues[expr.slot].value = value; break;
+      default: globals.assign(expr.slot, expr.name, value);
     }
 
     return value;
@@ -336,10 +564,29 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
-    Object left = evaluate(expr.left);
-    Object right = evaluate(expr.right);
-
     switch (expr.operator.type) {
+      case MINUS:
+      case PLUS:
+      case SLASH:
+      case STAR: {
+        // The result escapes here, so this is where it gets boxed
+        Object value = arithmetic(expr);
+        return value == NUMBER ? (Object)number : value;
+      }
+      case BANG_EQUAL:
+      case EQUAL_EQUAL:
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        return compare(expr);
+      default:
+        return binary(expr.operator, evaluate(expr.left), evaluate(expr.right));
+    }
+  }
+
+  static Object binary(Token operator, Object left, Object right) {
+    switch (operator.type) {
       case COMMA:
         return right;
       case BANG_EQUAL:
@@ -347,37 +594,34 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       case EQUAL_EQUAL:
         return isEqual(left, right);
       case GREATER:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(operator, left, right);
         return (double)left > (double)right;
       case GREATER_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(operator, left, right);
         return (double)left >= (double)right;
       case LESS:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(operator, left, right);
         return (double)left < (double)right;
       case LESS_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(operator, left, right);
         return (double)left <= (double)right;
       case MINUS:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(operator, left, right);
         return (double)left - (double)right;
       case PLUS:
         if (left instanceof Double && right instanceof Double) {
           return (double)left + (double)right;
         }
-        if (left instanceof String && right instanceof String) {
-          return (String)left + (String)right;
-        }
-        if (left instanceof String || right instanceof String) {
-          return stringify(left) + stringify(right);
+        if (left instanceof CharSequence || right instanceof CharSequence) {
+          return Rope.concat(Rope.text(left), Rope.text(right));
         }
-        throw new RuntimeError(expr.operator, "Operands must be two number or two strings.");
+        throw new RuntimeError(operator, "Operands must be two number or two strings.");
       case SLASH:
-        checkNumberOperands(expr.operator, left, right);
-        if ((double)right == 0) throw new RuntimeError(expr.operator, "Can't divide by zero.");
+        checkNumberOperands(operator, left, right);
+        if ((double)right == 0) throw new RuntimeError(operator, "Can't divide by zero.");
         return (double)left / (double)right;
       case STAR:
-        checkNumberOperands(expr.operator, left, right);
+        checkNumberOperands(operator, left, right);
         return (double)left * (double)right;
       default:
         return null;
@@ -386,40 +630,234 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitCallExpr(Expr.Call expr) {
+    // Methods that are called right away don't need a bound method
+    if (expr.callee instanceof Expr.Get) {
+      return invoke(expr, (Expr.Get)expr.callee);
+    }
+    if (expr.callee instanceof Expr.Super) {
+      Expr.Super callee = (Expr.Super)expr.callee;
+      LoxFunction method = superMethod(callee);
+      return invoke(expr, superReceiver(callee), method);
+    }
+
+    // FunctionJit inlines sites that always call the same function
     Object callee = evaluate(expr.callee);
+    expr.profile.record(callee);
+    return call(expr, callee);
+  }
 
+  private Object call(Expr.Call expr, Object callee) {
     if (!(callee instanceof LoxCallable)) {
       throw new RuntimeError(expr.paren, "Only functions and classes are callable.");
     }
 
-    List<Object> arguments = new ArrayList<>();
-    for (Expr argument : expr.arguments) {
-      arguments.add(evaluate(argument));
+    // Arguments go to the entry point for their count without a collection
+    LoxCallable function = (LoxCallable)callee;
+    List<Expr> arguments = expr.arguments;
+    Object a, b, c;
+    switch (arguments.size()) {
+      case 0:
+        checkArity(expr, function);
+        return call(function, expr.paren);
+      case 1:
+        a = evaluate(arguments.get(0));
+        checkArity(expr, function);
+        return call(function, expr.paren, a);
+      case 2:
+        a = evaluate(arguments.get(0));
+        b = evaluate(arguments.get(1));
+        checkArity(expr, function);
+        return call(function, expr.paren, a, b);
+      case 3:
+        a = evaluate(arguments.get(0));
+        b = evaluate(arguments.get(1));
+        c = evaluate(arguments.get(2));
+        checkArity(expr, function);
+        return call(function, expr.paren, a, b, c);
+      case 4:
+        a = evaluate(arguments.get(0));
+        b = evaluate(arguments.get(1));
+        c = evaluate(arguments.get(2));
+        Object d = evaluate(arguments.get(3));
+        checkArity(expr, function);
+        return call(function, expr.paren, a, b, c, d);
+      default:
+        Object[] values = evaluateArguments(expr);
+        checkArity(expr, function);
+        return call(function, values, expr.paren);
     }
+  }
 
-    LoxCallable function = (LoxCallable)callee;
-    if (arguments.size() != function.arity()) {
-      throw new RuntimeError(expr.paren,
-          "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+  // `object.name(...)`, same as evaluating `object.name` and calling it
+  private Object invoke(Expr.Call expr, Expr.Get callee) {
+    Object object = evaluate(callee.object);
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(callee.name, "Only instances can have properties.");
     }
 
-    return function.call(this, arguments);
+    // Fields shadow methods
+    LoxInstance instance = (LoxInstance)object;
+    int slot = instance.slotOf(callee.cache);
+    if (slot != -1) return call(expr, instance.getField(slot));
+
+    LoxFunction method = instance.klass.findMethod(callee.name.symbol);
+    if (method == null) {
+      throw new RuntimeError(callee.name, "Undefined property '" + callee.name.lexeme + "'.");
+    }
+
+    return invoke(expr, instance, method);
+  }
+
+  private Object invoke(Expr.Call expr, LoxInstance receiver, LoxFunction method) {
+    Object[] arguments = evaluateArguments(expr);
+    checkArity(expr, method);
+    return invoke(method, receiver, arguments, expr.paren);
+  }
+
+  /*
+   * Every engine but the VM calls Lox code through these. Going over
+   * `maxDepth` is reported as a runtime error at the call that went too
+   * deep.
+   */
+  Object call(LoxCallable function, Token paren) {
+    enter(paren);
+    try {
+      return function.call0(this);
+    } finally {
+      depth--;
+    }
+  }
+
+  Object call(LoxCallable function, Token paren, Object a) {
+    enter(paren);
+    try {
+      return function.call1(this, a);
+    } finally {
+      depth--;
+    }
+  }
+
+  Object call(LoxCallable function, Token paren, Object a, Object b) {
+    enter(paren);
+    try {
+      return function.call2(this, a, b);
+    } finally {
+      depth--;
+    }
+  }
+
+  Object call(LoxCallable function, Token paren, Object a, Object b, Object c) {
+    enter(paren);
+    try {
+      return function.call3(this, a, b, c);
+    } finally {
+      depth--;
+    }
+  }
+
+  Object call(LoxCallable function, Token paren, Object a, Object b, Object c, Object d) {
+    enter(paren);
+    try {
+      return function.call4(this, a, b, c, d);
+    } finally {
+      depth--;
+    }
+  }
+
+  Object call(LoxCallable function, Object[] arguments, Token paren) {
+    enter(paren);
+    try {
+      return function.call(this, arguments);
+    } finally {
+      depth--;
+    }
+  }
+
+  // Calls from the host, see LoxContext. They have no call site, errors are
+  // reported at line 0.
+  Object call(LoxCallable function, Object[] arguments) {
+    if (arguments.length != function.arity()) {
+      throw new RuntimeError(HOST, "Expected " + function.arity() + " arguments but got " +
+          arguments.length + ".");
+    }
+    try {
+      return call(function, arguments, HOST);
+    } catch (StackOverflowError error) {
+      throw stackOverflow();
+    }
+  }
+
+  Object invoke(LoxFunction method, LoxInstance receiver, Object[] arguments, Token paren) {
+    enter(paren);
+    try {
+      return method.invoke(this, receiver, arguments);
+    } finally {
+      depth--;
+    }
+  }
+
+  private void enter(Token paren) {
+    if (depth == maxDepth) throw stackOverflow(paren);
+    depth++;
+    callLine = paren.line;
+  }
+
+  static RuntimeError stackOverflow(Token paren) {
+    return new RuntimeError(paren, "Stack overflow.");
+  }
+
+  /*
+   * The JVM stack can run out before `maxDepth` does, that is caught once
+   * where the run started and reported at the last call. Lox.main gives
+   * its script a stack that fits `maxDepth` calls.
+   */
+  private RuntimeError stackOverflow() {
+    return new RuntimeError(callLine, "Stack overflow.");
+  }
+
+  private Object[] evaluateArguments(Expr.Call expr) {
+    Object[] arguments = new Object[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = evaluate(expr.arguments.get(i));
+    }
+    return arguments;
+  }
+
+  // A site only checks the arity of a callee the first time it calls it
+  private static void checkArity(Expr.Call expr, LoxCallable function) {
+    if (expr.profile.checked == function) return;
+    checkArity(expr.paren, function.arity(), expr.arguments.size());
+    expr.profile.checked = function;
+  }
+
+  static void checkArity(Token paren, int arity, int count) {
+    if (count != arity) {
+      throw new RuntimeError(paren, "Expected " + arity + " arguments but got " + count + ".");
+    }
   }
 
   @Override
   public Object visitGetExpr(Expr.Get expr) {
     Object object = evaluate(expr.object);
     if (object instanceof LoxInstance) {
-      return ((LoxInstance) object).get(expr.name);
+      return ((LoxInstance) object).get(expr.name, expr.cache);
     }
     throw new RuntimeError(expr.name, "Only instances can have properties.");
   }
 
-  private void define(Token name, Object value) {
-    if (environment != null) {
-      environment.define(value);
-    } else {
-      globals.put(name.lexeme, value);
+  // Globals are declared at the top level, where there's no environment
+  private void define(int kind, int slot, Object value) {
+    switch (kind) {
+      case Resolver.LOCAL: environment.assign(slot, value); break;
+      case Resolver.CELL: environment.assign(slot, new Cell(value)); break;
+      default: globals.define(slot, value);
     }
   }
+
+  // Declares a captured local, its value is set once it's computed
+  private Cell newCell(int slot) {
+    Cell cell = new Cell(null);
+    environment.assign(slot, cell);
+    return cell;
+  }
 }
@@ -0,0 +1,187 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * Static helpers called from code generated by FunctionJit. Each one does
+ * what the matching Interpreter visit method does once its operands are
+ * evaluated, including the same runtime errors. They're small enough for
+ * HotSpot to inline into the generated method.
+ */
+final class JitRuntime {
+  private JitRuntime() {}
+
+  // == Variables ==
+
+  static Object getGlobal(Interpreter interpreter, int slot, Token name) {
+    return interpreter.globals.get(slot, name);
+  }
+
+  static Object setGlobal(Interpreter interpreter, int slot, Token name, Object value) {
+    interpreter.globals.assign(slot, name, value);
+    return value;
+  }
+
+  static Object setCell(Cell cell, Object value) {
+    cell.value = value;
+    return value;
+  }
+
+  // == Operators ==
+
+  static boolean isTruthy(Object value) {
+    return Interpreter.isTruthy(value);
+  }
+
+  static Object not(Object value) {
+    return !Interpreter.isTruthy(value);
+  }
+
+  static Object negate(Object value, Token operator) {
+    Interpreter.checkNumberOperand(operator, value);
+    return -(double)value;
+  }
+
+  static boolean isEqual(Object left, Object right) {
+    return Interpreter.isEqual(left, right);
+  }
+
+  static boolean greater(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return (double)left > (double)right;
+  }
+
+  static boolean greaterEqual(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return (double)left >= (double)right;
+  }
+
+  static boolean less(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return (double)left < (double)right;
+  }
+
+  static boolean lessEqual(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return (double)left <= (double)right;
+  }
+
+  static Object add(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double)left + (double)right;
+    }
+    if (left instanceof CharSequence || right instanceof CharSequence) {
+      return Rope.concat(Rope.text(left), Rope.text(right));
+    }
+    throw new RuntimeError(operator, "Operands must be two number or two strings.");
+  }
+
+  static Object subtract(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return (double)left - (double)right;
+  }
+
+  static Object multiply(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return (double)left * (double)right;
+  }
+
+  static Object divide(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    if ((double)right == 0) throw new RuntimeError(operator, "Can't divide by zero.");
+    return (double)left / (double)right;
+  }
+
+  // == Calls and objects ==
+
+  static LoxCallable checkCallable(Object callee, Token paren) {
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren, "Only functions and classes are callable.");
+    }
+    return (LoxCallable)callee;
+  }
+
+  static Object call(LoxCallable function, Object[] arguments, Interpreter interpreter, Token paren) {
+    if (arguments.length != function.arity()) {
+      throw new RuntimeError(paren,
+          "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+    }
+    return interpreter.call(function, arguments, paren);
+  }
+
+  /*
+   * Callee of `object.name(...)`. That's the value of the field if there is
+   * one, otherwise the unbound method that `invoke` calls on `object`.
+   */
+  static Object method(Object object, Token name, PropertyCache cache, Token paren) {
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(name, "Only instances can have properties.");
+    }
+
+    LoxInstance instance = (LoxInstance)object;
+    int slot = instance.slotOf(cache);
+    if (slot != -1) return checkCallable(instance.getField(slot), paren);
+
+    LoxFunction method = instance.klass.findMethod(name.symbol);
+    if (method == null) {
+      throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+    return method;
+  }
+
+  // Unbound methods never escape as values, so they can only come from `method`
+  static Object invoke(Object receiver, Object callee, Object[] arguments, Interpreter interpreter,
+      Token paren) {
+    if (callee instanceof LoxFunction && ((LoxFunction)callee).isMethod) {
+      LoxFunction method = (LoxFunction)callee;
+      if (arguments.length != method.arity()) {
+        throw new RuntimeError(paren,
+            "Expected " + method.arity() + " arguments but got " + arguments.length + ".");
+      }
+      return interpreter.invoke(method, (LoxInstance)receiver, arguments, paren);
+    }
+    return call((LoxCallable)callee, arguments, interpreter, paren);
+  }
+
+  static Object get(Object object, Token name, PropertyCache cache) {
+    if (object instanceof LoxInstance) {
+      return ((LoxInstance)object).get(name, cache);
+    }
+    throw new RuntimeError(name, "Only instances can have properties.");
+  }
+
+  static LoxInstance checkInstance(Object object, Token name) {
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(name, "Only instances  have fields.");
+    }
+    return (LoxInstance)object;
+  }
+
+  static Object set(LoxInstance object, Object value, PropertyCache cache) {
+    object.set(cache, value);
+    return value;
+  }
+
+  static Object superMethod(Object superclass, Token method) {
+    LoxFunction function = ((LoxClass)superclass).findMethod(method.symbol);
+
+    if (function == null) {
+      throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+    }
+
+    return function;
+  }
+
+  static Object bind(Object receiver, Object method) {
+    return ((LoxFunction)method).bind((LoxInstance)receiver);
+  }
+
+  // == Statements ==
+
+  static void print(Interpreter interpreter, Object value) {
+    interpreter.output.println(value);
+  }
+
+  // Value of an expression statement, the REPL prints it
+  static void discard(Interpreter interpreter, Object value) {
+    if (interpreter.isREPL) interpreter.output.println(value);
+  }
+}
@@ -0,0 +1,91 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/*
+ * Body of a function the Parser only pre-parsed, see PreParser. Its
+ * Expr.Function has no body until the function is first called, then
+ * parse builds it from the tokens the script was scanned into, resolves
+ * it like the Resolver would have with the rest of the script and
+ * optimizes it if the script was. That happens once, whichever context
+ * calls the function first, and every context links its own copy.
+ *
+ * Functions declared in the body aren't lazy again, they're parsed with it.
+ */
+final class LazyFunction {
+  // Null once the body is parsed
+  private List<Token> tokens;
+  // The body's tokens, after its `{` up to and including its `}`
+  private final int start;
+  final int end;
+  private final List<Token> params;
+  // Where it's declared, `className` is set for methods
+  final Resolver.FunctionType type;
+  final Resolver.ClassType classType;
+  final Token className;
+  // Names the body uses without declaring them and whether it reads them
+  final Symbol[] names;
+  final boolean[] reads;
+
+  // Filled in by the Resolver: the name of its profile and which of
+  // `names` are variables of the functions around it, in upvalue order
+  String name;
+  Symbol[] upvalues;
+  // Set by the Optimizer when the script is optimized
+  boolean optimize = false;
+
+  private Expr.Function parsed = null;
+  // Nodes the Optimizer rewrote in the body
+  private int rewrites = 0;
+
+  LazyFunction(List<Token> tokens, int start, int end, List<Token> params,
+      Resolver.FunctionType type, Resolver.ClassType classType, Token className,
+      Symbol[] names, boolean[] reads) {
+    this.tokens = tokens;
+    this.start = start;
+    this.end = end;
+    this.params = params;
+    this.type = type;
+    this.classType = classType;
+    this.className = className;
+    this.names = names;
+    this.reads = reads;
+  }
+
+  /*
+   * The function with its body, parsed on the first call. It's shared by
+   * every context and only read: it has the body, slots, cells and
+   * profile, the upvalues are captured as the declaration in the script
+   * says.
+   */
+  synchronized Expr.Function parse() {
+    if (parsed != null) return parsed;
+
+    Reporter errors = new Reporter();
+    Expr.Function function = new Expr.Function(params);
+    function.body = new Parser(tokens, errors).body(start);
+    if (!errors.hadError) new Resolver(errors).resolveLazy(function, this);
+    // The PreParser only leaves bodies without errors for later
+    if (errors.hadError) {
+      throw new IllegalStateException("Lazy function " + name + ": " + errors.messages);
+    }
+
+    if (optimize) {
+      Optimizer optimizer = new Optimizer();
+      function.body = optimizer.optimize(function.body);
+      rewrites = optimizer.rewrites;
+    }
+
+    parsed = function;
+    tokens = null;
+    return parsed;
+  }
+
+  synchronized boolean isParsed() {
+    return parsed != null;
+  }
+
+  synchronized int rewrites() {
+    return rewrites;
+  }
+}
@@ -0,0 +1,225 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Copies the tree of a Program for one context before the tree-walking
+ * and node engines run it. The Program stays untouched, so any number of
+ * contexts can run it at the same time:
+ *
+ * - global variables get their slot in the context's Globals
+ * - calls, property accesses and functions get fresh profiles and caches,
+ *   what one context learns while running doesn't leak into another
+ *
+ * Everything else the Resolver filled in is copied over. Literals and
+ * `break` don't change, so they're shared.
+ */
+class Linker implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  private final Globals globals;
+
+  Linker(Globals globals) {
+    this.globals = globals;
+  }
+
+  List<Stmt> link(List<Stmt> statements) {
+    List<Stmt> result = new ArrayList<>(statements.size());
+    for (Stmt statement : statements) {
+      result.add(link(statement));
+    }
+    return result;
+  }
+
+  private Stmt link(Stmt stmt) {
+    return stmt == null ? null : stmt.accept(this);
+  }
+
+  private Expr link(Expr expr) {
+    return expr == null ? null : expr.accept(this);
+  }
+
+  private int slot(int kind, int slot, Token name) {
+    return kind == Resolver.GLOBAL ? globals.slot(name.symbol) : slot;
+  }
+
+  // == Expressions ==
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr.Assign result = new Expr.Assign(expr.name, link(expr.value));
+    result.kind = expr.kind;
+    result.slot = slot(expr.kind, expr.slot, expr.name);
+    return result;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    return new Expr.Binary(link(expr.left), expr.operator, link(expr.right));
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+    for (Expr argument : expr.arguments) {
+      arguments.add(link(argument));
+    }
+
+    Expr.Call result = new Expr.Call(link(expr.callee), expr.paren, arguments);
+    result.profile = new CallProfile();
+    return result;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr.Get result = new Expr.Get(link(expr.object), expr.name);
+    result.cache = new PropertyCache(expr.name.symbol);
+    return result;
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    return new Expr.Grouping(link(expr.expression));
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    return new Expr.Logical(link(expr.left), expr.operator, link(expr.right));
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr.Set result = new Expr.Set(link(expr.object), expr.name, link(expr.value));
+    result.cache = new PropertyCache(expr.name.symbol);
+    return result;
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    Expr.Super result = new Expr.Super(expr.keyword, expr.method);
+    result.kind = expr.kind;
+    result.slot = expr.slot;
+    result.thisKind = expr.thisKind;
+    result.thisSlot = expr.thisSlot;
+    return result;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    Expr.This result = new Expr.This(expr.keyword);
+    result.kind = expr.kind;
+    result.slot = expr.slot;
+    return result;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    return new Expr.Unary(expr.operator, link(expr.right));
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    Expr.Variable result = new Expr.Variable(expr.name);
+    result.kind = expr.kind;
+    result.slot = slot(expr.kind, expr.slot, expr.name);
+    return result;
+  }
+
+  @Override
+  public Expr visitFunctionExpr(Expr.Function expr) {
+    Expr.Function result = new Expr.Function(expr.params);
+    // A lazy body is linked on the first call, see linkBody
+    result.lazy = expr.lazy;
+    if (expr.lazy == null) result.body = link(expr.body);
+    result.profile = new FunctionProfile(expr.profile);
+    result.slots = expr.slots;
+    result.cells = expr.cells;
+    result.captures = expr.captures;
+    return result;
+  }
+
+  /*
+   * Gives the copy of a lazy function its body, once the LazyFunction
+   * parsed it. The upvalues were captured by the declaration already.
+   */
+  void linkBody(Expr.Function function) {
+    Expr.Function parsed = function.lazy.parse();
+    function.profile = new FunctionProfile(parsed.profile);
+    function.slots = parsed.slots;
+    function.cells = parsed.cells;
+    function.body = link(parsed.body);
+  }
+
+  // == Statements ==
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    Stmt.Block result = new Stmt.Block(link(stmt.statements));
+    result.slots = stmt.slots;
+    return result;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+    for (Stmt.Function method : stmt.methods) {
+      methods.add((Stmt.Function)link(method));
+    }
+
+    Stmt.Class result = new Stmt.Class(stmt.name, (Expr.Variable)link(stmt.superclass), methods);
+    result.kind = stmt.kind;
+    result.slot = slot(stmt.kind, stmt.slot, stmt.name);
+    result.superSlot = stmt.superSlot;
+    return result;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    return new Stmt.Expression(link(stmt.expression));
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Stmt.Function result = new Stmt.Function(stmt.name, (Expr.Function)link(stmt.function));
+    result.kind = stmt.kind;
+    result.slot = slot(stmt.kind, stmt.slot, stmt.name);
+    return result;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    return new Stmt.If(link(stmt.condition), link(stmt.thenBranch), link(stmt.elseBranch));
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    return new Stmt.Print(link(stmt.expression));
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    return new Stmt.Return(stmt.keyword, link(stmt.value));
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Stmt.Var result = new Stmt.Var(stmt.name, link(stmt.initializer));
+    result.kind = stmt.kind;
+    result.slot = slot(stmt.kind, stmt.slot, stmt.name);
+    return result;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    return new Stmt.While(link(stmt.condition), link(stmt.body));
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+}
@@ -3,91 +3,182 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.Buffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
 
 /**
  * Lox
+ *
+ * Command line runner, scripts run in one LoxContext.
  */
 public class Lox {
-  private static final Interpreter interpreter = new Interpreter();
-  static boolean hadError = false;
-  static boolean hadRuntimeError = false;
+  private static boolean jitStats = false;
+  private static boolean nodeStats = false;
+  private static boolean optimizeStats = false;
+  private static boolean startupStats = false;
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
-    } else {
-      runPrompt();
+    String script = null;
+    LoxEngine.Kind kind = LoxEngine.Kind.TREE;
+    int jitThreshold = FunctionJit.DEFAULT_THRESHOLD;
+    int maxDepth = Interpreter.DEFAULT_MAX_DEPTH;
+    boolean optimize = true;
+    boolean lazy = true;
+    boolean lineBuffered = false;
+    Path cacheDirectory = null;
+    for (String arg : args) {
+      if (arg.startsWith("--engine=")) {
+        kind = parseEngine(arg.substring("--engine=".length()));
+      } else if (arg.startsWith("--jit-threshold=")) {
+        jitThreshold = parseCount(arg.substring("--jit-threshold=".length()));
+      } else if (arg.startsWith("--max-depth=")) {
+        // 0 leaves only memory, or the JVM stack, as the limit
+        maxDepth = parseCount(arg.substring("--max-depth=".length()));
+      } else if (arg.equals("--jit-stats")) {
+        jitStats = true;
+      } else if (arg.equals("--node-stats")) {
+        nodeStats = true;
+      } else if (arg.equals("--line-buffered")) {
+        lineBuffered = true;
+      } else if (arg.equals("--no-optimize")) {
+        optimize = false;
+      } else if (arg.equals("--no-lazy")) {
+        lazy = false;
+      } else if (arg.equals("--optimize-stats")) {
+        optimizeStats = true;
+      } else if (arg.startsWith("--cache-dir=")) {
+        cacheDirectory = Paths.get(arg.substring("--cache-dir=".length()));
+      } else if (arg.equals("--startup-stats")) {
+        startupStats = true;
+      } else if (script == null && !arg.startsWith("--")) {
+        script = arg;
+      } else {
+        usage();
+      }
     }
-  }
 
-  private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
-    if (hadError) System.exit(65);
-    if (hadRuntimeError) System.exit(70);
-  }
+    LoxEngine engine = new LoxEngine(kind, jitThreshold, maxDepth, optimize, lazy,
+        LoxEngine.DEFAULT_CACHE_SIZE, cacheDirectory);
+    LoxContext context = engine.newContext(System.out, System.err);
+    context.interpreter.output.lineBuffered = lineBuffered;
 
-  private static void runPrompt() throws IOException {
-    interpreter.isREPL = true;
-    InputStreamReader input = new InputStreamReader(System.in);
-    BufferedReader reader = new BufferedReader(input);
-
-    for (;;) {
-      System.out.print("> ");
-      String line = reader.readLine();
-      if (line == null)
-        break;
-      run(line);
-      hadError = false;
+    // `tree` and `nodes` nest JVM calls for every Lox call, so the script
+    // runs on a thread with a stack that fits `maxDepth` of them
+    String path = script;
+    IOException[] failure = new IOException[1];
+    Thread thread = new Thread(null, () -> {
+      try {
+        if (path != null) {
+          runFile(context, path);
+        } else {
+          runPrompt(context);
+        }
+      } catch (IOException e) {
+        failure[0] = e;
+      }
+    }, "lox", stackSize(maxDepth));
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    if (failure[0] != null) throw failure[0];
   }
 
-  private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
-    Parser parser = new Parser(tokens);
-    List<Stmt> statements = parser.parse();
-
-    // Stop on syntax error
-    if (hadError) return;
+  // JVM stack a Lox call takes in `tree` and `nodes`, with room for the
+  // expressions around it, and what the script needs besides its calls
+  private static final long FRAME_SIZE = 8 << 10;
+  private static final long BASE_STACK_SIZE = 1 << 20;
+  // Also the stack when there's no depth limit
+  private static final long MAX_STACK_SIZE = 1L << 30;
 
-    Resolver resolver = new Resolver(interpreter);
-    resolver.resolve(statements);
-
-    if (hadError) return;
+  private static long stackSize(int maxDepth) {
+    if (maxDepth == 0) return MAX_STACK_SIZE;
+    return Math.min(MAX_STACK_SIZE, BASE_STACK_SIZE + maxDepth * FRAME_SIZE);
+  }
 
-    interpreter.interpret(statements);
+  private static LoxEngine.Kind parseEngine(String name) {
+    for (LoxEngine.Kind value : LoxEngine.Kind.values()) {
+      if (value.name().equalsIgnoreCase(name)) return value;
+    }
+    usage();
+    return null;
   }
 
-  static void error(int line, String message) {
-    report(line, "", message);
+  private static int parseCount(String text) {
+    try {
+      int count = Integer.parseInt(text);
+      if (count >= 0) return count;
+    } catch (NumberFormatException e) {
+      // Falls through to usage
+    }
+    usage();
+    return 0;
   }
 
-  static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-    hadRuntimeError = true;
+  private static void usage() {
+    System.out.println("Usage: jlox [--engine=tree|nodes|vm] [--jit-threshold=N] [--jit-stats]" +
+        " [--node-stats] [--max-depth=N] [--line-buffered] [--no-optimize] [--optimize-stats]" +
+        " [--no-lazy] [--cache-dir=DIR] [--startup-stats] [script]");
+    System.exit(64);
   }
 
-  private static void report(int line, String where, String message) {
-    System.err.println("[line " + line + "] Error" + where + ": " + message);
-    hadError = true;
+  private static void runFile(LoxContext context, String path) throws IOException {
+    long read = System.nanoTime();
+    byte[] bytes = Files.readAllBytes(Paths.get(path));
+    long start = System.nanoTime();
+    Program program = context.engine.compile(new String(bytes, Charset.defaultCharset()));
+    long frontEnd = System.nanoTime() - start;
+    context.run(program);
+    Interpreter interpreter = context.interpreter;
+    if (jitStats) {
+      for (FunctionProfile profile : interpreter.jit.tiered) {
+        System.err.println(profile);
+      }
+      for (FunctionProfile profile : interpreter.jit.inlined) {
+        if (!interpreter.jit.tiered.contains(profile)) System.err.println(profile);
+      }
+      System.err.println("jit: " + interpreter.jit.inlinedSites + " call sites inlined");
+    }
+    if (nodeStats) {
+      for (String site : interpreter.specializations.deoptimized) {
+        System.err.println(site);
+      }
+      System.err.println(interpreter.specializations);
+    }
+    if (optimizeStats) {
+      System.err.println("optimizer: " + program.rewrites() + " nodes rewritten");
+    }
+    if (startupStats) {
+      System.err.println(String.format("front end: %.1f ms", frontEnd / 1e6));
+      if (context.started != 0) {
+        System.err.println(String.format("first statement after: %.1f ms",
+            (context.started - read) / 1e6));
+      }
+      System.err.println("lazy functions: " + program.parsed() + " of " + program.lazy.size() +
+          " parsed");
+      if (context.engine.store != null) System.err.println(context.engine.store);
+    }
+    if (interpreter.errors.hadError) System.exit(65);
+    if (interpreter.errors.hadRuntimeError) System.exit(70);
   }
 
-  static void error(Token token, String message) {
-    // We report line+1 because humans count lines starting from 1
-    int line = token.line + 1;
-    if (token.type == TokenType.EOF) {
-      report(line, " at end", message);
-    } else {
-      report(line, " at '" + token.lexeme + "'", message);
+  private static void runPrompt(LoxContext context) throws IOException {
+    Output output = context.interpreter.output;
+    context.interpreter.isREPL = true;
+    InputStreamReader input = new InputStreamReader(System.in);
+    BufferedReader reader = new BufferedReader(input);
+
+    for (;;) {
+      output.print("> ");
+      output.flush();
+      String line = reader.readLine();
+      if (line == null)
+        break;
+      context.eval(line);
     }
   }
 }
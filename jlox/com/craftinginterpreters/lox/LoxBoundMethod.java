@@ -0,0 +1,31 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * A method read as a value, e.g. `var m = object.method;`. Calls made
+ * directly on a property (`object.method()`) invoke the method with its
+ * receiver instead and never create one of these.
+ */
+class LoxBoundMethod implements LoxCallable {
+  final LoxInstance receiver;
+  final LoxFunction method;
+
+  LoxBoundMethod(LoxInstance receiver, LoxFunction method) {
+    this.receiver = receiver;
+    this.method = method;
+  }
+
+  @Override
+  public int arity() {
+    return method.arity();
+  }
+
+  @Override
+  public Object call(Interpreter interpreter, Object[] arguments) {
+    return method.invoke(interpreter, receiver, arguments);
+  }
+
+  @Override
+  public String toString() {
+    return method.toString();
+  }
+}
@@ -1,11 +1,33 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 /**
- * LoxCallable
+ * Anything Lox code can call. Calls with up to four arguments go through
+ * the entry point for that many, so the arguments are passed as JVM
+ * arguments instead of in an array. Callers check the arity first.
  */
 public interface LoxCallable {
   int arity();
-  Object call(Interpreter interpreter, List<Object> arguments);
+
+  // Any number of arguments, the fixed-arity entry points default to it
+  Object call(Interpreter interpreter, Object[] arguments);
+
+  default Object call0(Interpreter interpreter) {
+    return call(interpreter, new Object[0]);
+  }
+
+  default Object call1(Interpreter interpreter, Object a) {
+    return call(interpreter, new Object[] {a});
+  }
+
+  default Object call2(Interpreter interpreter, Object a, Object b) {
+    return call(interpreter, new Object[] {a, b});
+  }
+
+  default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    return call(interpreter, new Object[] {a, b, c});
+  }
+
+  default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    return call(interpreter, new Object[] {a, b, c, d});
+  }
 }
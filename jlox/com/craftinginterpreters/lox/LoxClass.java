@@ -1,29 +1,33 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 public class LoxClass implements LoxCallable {
   final String name;
   final LoxClass superclass;
-  private final Map<String, LoxFunction> methods;
+  // Own and inherited methods, so a lookup never walks the superclass chain
+  private final Map<Symbol, LoxFunction> methods;
+  private final LoxFunction initializer;
+  // Root of the shapes of this class's instances
+  final Shape shape = new Shape();
 
-  LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+  LoxClass(String name, LoxClass superclass, Map<Symbol, LoxFunction> methods) {
     this.superclass = superclass;
     this.name = name;
-    this.methods = methods;
-  }
-
-  LoxFunction findMethod(String name) {
-    if (methods.containsKey(name)) {
-      return methods.get(name);
-    }
 
-    if (superclass != null) {
-      return superclass.findMethod(name);
+    if (superclass == null) {
+      this.methods = methods;
+    } else {
+      // Copy-down inheritance, own methods override the inherited ones
+      this.methods = new HashMap<>(superclass.methods);
+      this.methods.putAll(methods);
     }
+    this.initializer = this.methods.get(Symbol.INIT);
+  }
 
-    return null;
+  LoxFunction findMethod(Symbol name) {
+    return methods.get(name);
   }
 
   @Override
@@ -32,18 +36,16 @@ public class LoxClass implements LoxCallable {
   }
 
   @Override
-  public Object call(Interpreter interpreter, List<Object> arguments) {
+  public Object call(Interpreter interpreter, Object[] arguments) {
     LoxInstance instance = new LoxInstance(this);
-    LoxFunction initializer = findMethod("init");
     if (initializer != null) {
-      initializer.bind(instance).call(interpreter, arguments);
+      initializer.invoke(interpreter, instance, arguments);
     }
     return instance;
   }
 
   @Override
   public int arity() {
-    LoxFunction initializer = findMethod("init");
     if (initializer == null) return 0;
     return initializer.arity();
   }
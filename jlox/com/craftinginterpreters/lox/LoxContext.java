@@ -0,0 +1,139 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/*
+ * One isolated Lox world: its globals, output and error sinks, JIT and
+ * caches belong to it alone. Scripts evaluated in it see what earlier ones
+ * defined, the host reads globals and calls functions with get and call.
+ * A Program compiled once can be run by many contexts.
+ *
+ * A context must only be used by one thread at a time. Contexts share no
+ * mutable state, so different contexts can run on different threads at
+ * the same time.
+ *
+ * Numbers are Doubles on the Lox side, the host can pass any Number.
+ * Strings come back as Strings.
+ */
+public final class LoxContext {
+  final LoxEngine engine;
+  final Interpreter interpreter;
+  private final VM vm;
+  // When the last program was ready to run its first statement
+  long started = 0;
+
+  LoxContext(LoxEngine engine, PrintStream out, PrintStream err) {
+    this.engine = engine;
+    this.interpreter = new Interpreter(out, err);
+    interpreter.jit.threshold = engine.jitThreshold;
+    interpreter.maxDepth = engine.maxDepth;
+    this.vm = new VM(interpreter);
+  }
+
+  // Compiles the script with the engine's cache and runs it
+  public boolean eval(String source) {
+    return run(engine.compile(source));
+  }
+
+  /*
+   * Runs a program, returns false if it had a syntax or runtime error. The
+   * errors are reported to the error sink, output is flushed before this
+   * returns.
+   */
+  public boolean run(Program program) {
+    Reporter errors = interpreter.errors;
+    errors.hadError = false;
+    errors.hadRuntimeError = false;
+    try {
+      execute(program);
+    } finally {
+      interpreter.output.flush();
+    }
+    return !errors.hadError && !errors.hadRuntimeError;
+  }
+
+  private void execute(Program program) {
+    if (!program.errors.isEmpty()) {
+      interpreter.errors.report(program.errors);
+      return;
+    }
+
+    // The bytecode compiler only reads the tree, the other engines keep
+    // profiles and caches in it and run a copy
+    if (engine.kind == LoxEngine.Kind.VM) {
+      BytecodeCompiler compiler = new BytecodeCompiler(interpreter.globals, interpreter.isREPL);
+      VM.ObjFunction script = compiler.compile(program.statements);
+      started = System.nanoTime();
+      vm.interpret(script);
+      return;
+    }
+
+    List<Stmt> statements = new Linker(interpreter.globals).link(program.statements);
+    if (engine.kind == LoxEngine.Kind.NODES) {
+      Node node = new NodeCompiler(interpreter).compile(statements);
+      started = System.nanoTime();
+      interpreter.interpret(node);
+    } else {
+      started = System.nanoTime();
+      interpreter.interpret(statements);
+    }
+  }
+
+  // Value of a global variable
+  public Object get(String name) {
+    return toHost(global(name));
+  }
+
+  // Defines or replaces a global variable
+  public void set(String name, Object value) {
+    interpreter.globals.define(name, toLox(value));
+  }
+
+  /*
+   * Calls the function or class stored in global `name`. A runtime error
+   * in the call is thrown as a RuntimeError instead of being reported, and
+   * the context stays usable.
+   */
+  public Object call(String name, Object... arguments) {
+    Object callee = global(name);
+    Object[] values = new Object[arguments.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = toLox(arguments[i]);
+    }
+
+    try {
+      if (engine.kind == LoxEngine.Kind.VM) return toHost(vm.call(callee, values));
+      if (!(callee instanceof LoxCallable)) {
+        throw new RuntimeError(0, "Only functions and classes are callable.");
+      }
+      return toHost(interpreter.call((LoxCallable)callee, values));
+    } finally {
+      interpreter.output.flush();
+    }
+  }
+
+  // Names that were never used leave no symbol or slot behind
+  private Object global(String name) {
+    Globals globals = interpreter.globals;
+    Symbol symbol = Symbol.find(name);
+    int slot = symbol == null ? -1 : globals.find(symbol);
+    if (slot == -1 || !globals.isDefined(slot)) {
+      throw new IllegalArgumentException("Undefined variable '" + name + "'.");
+    }
+    return globals.value(slot);
+  }
+
+  private static Object toLox(Object value) {
+    if (value instanceof Number && !(value instanceof Double)) {
+      return ((Number)value).doubleValue();
+    }
+    return value;
+  }
+
+  // Long strings are ropes inside
+  private static Object toHost(Object value) {
+    if (value instanceof CharSequence) return value.toString();
+    return value;
+  }
+}
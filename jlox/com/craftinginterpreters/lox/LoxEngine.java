@@ -0,0 +1,95 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+
+/*
+ * Runs Lox embedded in a Java program. The engine holds settings: which
+ * execution engine to use, the JIT threshold, the call depth limit,
+ * whether to optimize and whether function bodies are parsed lazily. They
+ * never change, and the caches of compiled
+ * Programs are thread-safe, so one engine can be shared by every thread.
+ * Scripts run in contexts made by newContext, see LoxContext.
+ */
+public final class LoxEngine {
+  public enum Kind { TREE, NODES, VM }
+
+  final Kind kind;
+  final int jitThreshold;
+  final int maxDepth;
+  final boolean optimize;
+  final boolean lazy;
+  private final ProgramCache cache;
+  // Null unless programs are also kept on disk
+  final ProgramStore store;
+
+  static final int DEFAULT_CACHE_SIZE = 512;
+
+  public LoxEngine() {
+    this(Kind.TREE, FunctionJit.DEFAULT_THRESHOLD, Interpreter.DEFAULT_MAX_DEPTH, true);
+  }
+
+  // A `jitThreshold` of 0 turns the JIT off, a `maxDepth` of 0 leaves only
+  // memory or the JVM stack as the limit
+  public LoxEngine(Kind kind, int jitThreshold, int maxDepth, boolean optimize) {
+    this(kind, jitThreshold, maxDepth, optimize, DEFAULT_CACHE_SIZE);
+  }
+
+  // Keeps up to `cacheSize` compiled programs, 0 compiles every time
+  public LoxEngine(Kind kind, int jitThreshold, int maxDepth, boolean optimize, int cacheSize) {
+    this(kind, jitThreshold, maxDepth, optimize, cacheSize, null);
+  }
+
+  // Also saves compiled programs in `cacheDirectory` and loads them from
+  // there, so they outlive the process, see ProgramStore
+  public LoxEngine(Kind kind, int jitThreshold, int maxDepth, boolean optimize, int cacheSize,
+      Path cacheDirectory) {
+    this(kind, jitThreshold, maxDepth, optimize, true, cacheSize, cacheDirectory);
+  }
+
+  // With `lazy` false every function body is parsed before the program
+  // runs, see LazyFunction
+  public LoxEngine(Kind kind, int jitThreshold, int maxDepth, boolean optimize, boolean lazy,
+      int cacheSize, Path cacheDirectory) {
+    if (kind == null) throw new NullPointerException("kind");
+    if (jitThreshold < 0) throw new IllegalArgumentException("jitThreshold < 0");
+    if (maxDepth < 0) throw new IllegalArgumentException("maxDepth < 0");
+    if (cacheSize < 0) throw new IllegalArgumentException("cacheSize < 0");
+
+    this.kind = kind;
+    this.jitThreshold = jitThreshold;
+    this.maxDepth = maxDepth == 0 ? Integer.MAX_VALUE : maxDepth;
+    this.optimize = optimize;
+    this.lazy = lazy;
+    this.cache = new ProgramCache(cacheSize);
+    this.store = cacheDirectory == null ? null : new ProgramStore(cacheDirectory, optimize);
+  }
+
+  // The cached program for this source, loaded or compiled now if there's
+  // none
+  public Program compile(String source) {
+    Program program = cache.get(source);
+    if (program != null) return program;
+    if (store == null) return cache.put(source, Program.compile(source, optimize, lazy));
+
+    byte[] key = ProgramStore.key(source);
+    if (key == null) return cache.put(source, Program.compile(source, optimize, lazy));
+    program = store.load(key);
+    if (program == null) {
+      // Saving needs every body, one pass parses them faster than the
+      // first calls would
+      program = Program.compile(source, optimize, false);
+      store.save(key, program);
+    }
+    return cache.put(source, program);
+  }
+
+  public ProgramCache cache() {
+    return cache;
+  }
+
+  // `print` writes to `out`, syntax and runtime errors go to `err`
+  public LoxContext newContext(PrintStream out, PrintStream err) {
+    return new LoxContext(this, out, err);
+  }
+}
@@ -1,24 +1,26 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 class LoxFunction implements LoxCallable {
-  private final String name;
-  private final Expr.Function declaration;
-  private final Environment closure;
-  private final boolean isInitializer;
+  final String name;
+  final Expr.Function declaration;
+  // Cells of the variables it uses from the functions around it, null when
+  // it uses none
+  final Cell[] upvalues;
+  // Methods get their receiver as `this` in the first slot of their environment
+  final boolean isMethod;
+  final boolean isInitializer;
 
-  LoxFunction(String name, Expr.Function declaration, Environment closure, boolean isInitializer) {
+  LoxFunction(String name, Expr.Function declaration, Cell[] upvalues, boolean isMethod,
+      boolean isInitializer) {
     this.name = name;
-    this.closure = closure;
+    this.upvalues = upvalues;
     this.declaration = declaration;
+    this.isMethod = isMethod;
     this.isInitializer = isInitializer;
   }
 
-  LoxFunction bind(LoxInstance instance) {
-    Environment environment = new Environment(closure);
-    environment.define(instance);
-    return new LoxFunction(name, declaration, environment, isInitializer);
+  LoxCallable bind(LoxInstance instance) {
+    return new LoxBoundMethod(instance, this);
   }
 
   @Override
@@ -32,28 +34,119 @@ class LoxFunction implements LoxCallable {
     return this.declaration.params.size();
   }
 
+  /*
+   * The fixed-arity entry points write the arguments straight into the
+   * slots of the new frame. They're only used for plain functions, methods
+   * are always called through `invoke` with their receiver.
+   */
+  @Override
+  public Object call0(Interpreter interpreter) {
+    CompiledFunction code = compiled(interpreter);
+    if (code != null) return code.call(interpreter, upvalues, new Object[0]);
+
+    return execute(interpreter, new Environment(upvalues, declaration.slots), null);
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    CompiledFunction code = compiled(interpreter);
+    if (code != null) return code.call(interpreter, upvalues, new Object[] {a});
+
+    Environment environment = new Environment(upvalues, declaration.slots);
+    environment.assign(0, a);
+    return execute(interpreter, environment, null);
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    CompiledFunction code = compiled(interpreter);
+    if (code != null) return code.call(interpreter, upvalues, new Object[] {a, b});
+
+    Environment environment = new Environment(upvalues, declaration.slots);
+    environment.assign(0, a);
+    environment.assign(1, b);
+    return execute(interpreter, environment, null);
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    CompiledFunction code = compiled(interpreter);
+    if (code != null) return code.call(interpreter, upvalues, new Object[] {a, b, c});
+
+    Environment environment = new Environment(upvalues, declaration.slots);
+    environment.assign(0, a);
+    environment.assign(1, b);
+    environment.assign(2, c);
+    return execute(interpreter, environment, null);
+  }
+
+  @Override
+  public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    CompiledFunction code = compiled(interpreter);
+    if (code != null) return code.call(interpreter, upvalues, new Object[] {a, b, c, d});
+
+    Environment environment = new Environment(upvalues, declaration.slots);
+    environment.assign(0, a);
+    environment.assign(1, b);
+    environment.assign(2, c);
+    environment.assign(3, d);
+    return execute(interpreter, environment, null);
+  }
+
   @Override
-  public Object call(Interpreter interpreter, List<Object> arguments) {
-    Environment environment = new Environment(closure);
+  public Object call(Interpreter interpreter, Object[] arguments) {
+    return invoke(interpreter, null, arguments);
+  }
 
-    for (int i = 0; i < declaration.params.size(); i++) {
-      environment.define(arguments.get(i));
+  // Calls a method on `receiver`, it's ignored for plain functions
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    CompiledFunction code = compiled(interpreter);
+    if (code != null) {
+      Object value = code.call(interpreter, upvalues, frame(receiver, arguments));
+      if (isInitializer) return receiver;
+      return value;
     }
 
-    // We get return value by catching special exception and returning it's
-    // value. This is needed because `return` can occur anywhere in the function
-    // so we need a way to jump to the bottom of the call stack from anywhere.
-    try {
-      interpreter.executeBlock(declaration.body, environment);
-    } catch (Return returnValue) {
-      // This allows empty `return` statements inside initializers
-      if (isInitializer) return closure.getAt(0, 0);
-      return returnValue.value;
+    // One frame for all of the function's locals, the receiver and
+    // arguments go first
+    Environment environment = new Environment(upvalues, declaration.slots);
+
+    int first = 0;
+    if (isMethod) environment.assign(first++, receiver);
+    for (int i = 0; i < arguments.length; i++) {
+      environment.assign(first + i, arguments[i]);
     }
+    return execute(interpreter, environment, receiver);
+  }
+
+  // Hot functions run as JVM bytecode, see FunctionJit. A lazy body is
+  // parsed and linked on the first call, see LazyFunction
+  CompiledFunction compiled(Interpreter interpreter) {
+    if (declaration.body == null) new Linker(interpreter.globals).linkBody(declaration);
+    return interpreter.jit.tierUp(declaration, isMethod);
+  }
+
+  // Runs the body in its frame, which already holds the receiver and arguments
+  Object execute(Interpreter interpreter, Environment environment, LoxInstance receiver) {
+    environment.box(declaration.cells);
+    // `return` anywhere in the body completes every statement around it
+    // with RETURN, up to here
+    Object completion = interpreter.executeBlock(declaration.body, environment);
 
-    // Always return `this` from initializer
-    if (isInitializer) return closure.getAt(0, 0);
+    // Always return `this` from initializer, even after an empty `return`
+    if (isInitializer) return receiver;
 
+    if (completion == Interpreter.RETURN) return interpreter.returnValue;
     return null;
   }
+
+  // Values of the function's first slots: the receiver and the arguments
+  private Object[] frame(LoxInstance receiver, Object[] arguments) {
+    if (!isMethod) return arguments;
+
+    Object[] values = new Object[arguments.length + 1];
+    values[0] = receiver;
+    System.arraycopy(arguments, 0, values, 1, arguments.length);
+    return values;
+  }
 }
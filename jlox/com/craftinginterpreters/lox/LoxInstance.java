@@ -1,32 +1,28 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
-public class LoxInstance {
-  private LoxClass klass;
-  private final Map<String, Object> fields = new HashMap<>();
+public class LoxInstance extends DynamicObject {
+  final LoxClass klass;
 
   LoxInstance(LoxClass klass) {
+    super(klass.shape);
     this.klass = klass;
   }
 
-  Object get(Token name) {
+  Object get(Token name, PropertyCache cache) {
     // Try to return field first
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
-    }
+    int slot = slotOf(cache);
+    if (slot != -1) return getField(slot);
 
     // Then try to find a method
-    LoxFunction method = klass.findMethod(name.lexeme);
+    LoxFunction method = klass.findMethod(name.symbol);
     if (method != null) return method.bind(this);
 
     throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
   }
 
-  void set(Token name, Object value) {
-    // Lox allows creation of fields in runtime so we just `put` our value
-    fields.put(name.lexeme, value);
+  void set(PropertyCache cache, Object value) {
+    // Lox allows creation of fields in runtime, a new field changes the shape
+    setField(cache, value);
   }
 
   @Override
@@ -0,0 +1,184 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Native functions in the globals of every engine: `clock` and the string
+ * library. Strings are Strings or Ropes, so slices and concatenations of
+ * big strings don't copy them. `split` returns a list that `length`, `get`
+ * and `join` work on, `builder` a string builder for `append` and `build`.
+ */
+final class Natives {
+  private Natives() {}
+
+  // A native implements the entry point for its arity
+  private abstract static class Native implements LoxCallable {
+    private final int arity;
+
+    Native(int arity) {
+      this.arity = arity;
+    }
+
+    @Override
+    public int arity() {
+      return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+      switch (arguments.length) {
+        case 0: return call0(interpreter);
+        case 1: return call1(interpreter, arguments[0]);
+        case 2: return call2(interpreter, arguments[0], arguments[1]);
+        default: return call3(interpreter, arguments[0], arguments[1], arguments[2]);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "<native fn>";
+    }
+  }
+
+  static final class StringList {
+    final List<CharSequence> elements;
+
+    StringList(List<CharSequence> elements) {
+      this.elements = elements;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + String.join(", ", elements) + "]";
+    }
+  }
+
+  static final class Builder {
+    final StringBuilder text = new StringBuilder();
+
+    @Override
+    public String toString() {
+      return "<string builder>";
+    }
+  }
+
+  static void define(Globals globals) {
+    globals.define("clock", new Native(0) {
+      @Override
+      public Object call0(Interpreter interpreter) {
+        return (double)System.currentTimeMillis() / 1000.0;
+      }
+    });
+
+    globals.define("length", new Native(1) {
+      @Override
+      public Object call1(Interpreter interpreter, Object value) {
+        if (value instanceof CharSequence) return (double)((CharSequence)value).length();
+        if (value instanceof StringList) return (double)((StringList)value).elements.size();
+        throw error(interpreter, "length() expects a string or a list.");
+      }
+    });
+
+    globals.define("substring", new Native(3) {
+      @Override
+      public Object call3(Interpreter interpreter, Object string, Object start, Object end) {
+        CharSequence text = string(interpreter, "substring", string);
+        int from = index(interpreter, "substring", start, text.length());
+        int to = index(interpreter, "substring", end, text.length());
+        if (from > to) throw error(interpreter, "substring() start is after end.");
+        return Rope.slice(text, from, to);
+      }
+    });
+
+    globals.define("indexOf", new Native(2) {
+      @Override
+      public Object call2(Interpreter interpreter, Object string, Object part) {
+        String text = string(interpreter, "indexOf", string).toString();
+        return (double)text.indexOf(string(interpreter, "indexOf", part).toString());
+      }
+    });
+
+    globals.define("split", new Native(2) {
+      @Override
+      public Object call2(Interpreter interpreter, Object string, Object separator) {
+        CharSequence text = string(interpreter, "split", string);
+        String flat = text.toString();
+        String by = string(interpreter, "split", separator).toString();
+        if (by.isEmpty()) throw error(interpreter, "split() separator is empty.");
+
+        // Parts are slices of the string, empty ones are kept
+        List<CharSequence> parts = new ArrayList<>();
+        int start = 0;
+        for (int at = flat.indexOf(by); at != -1; at = flat.indexOf(by, start)) {
+          parts.add(Rope.slice(flat, start, at));
+          start = at + by.length();
+        }
+        parts.add(Rope.slice(flat, start, flat.length()));
+        return new StringList(parts);
+      }
+    });
+
+    globals.define("get", new Native(2) {
+      @Override
+      public Object call2(Interpreter interpreter, Object list, Object index) {
+        if (!(list instanceof StringList)) throw error(interpreter, "get() expects a list.");
+        List<CharSequence> elements = ((StringList)list).elements;
+        int at = index(interpreter, "get", index, elements.size() - 1);
+        return elements.get(at);
+      }
+    });
+
+    globals.define("join", new Native(2) {
+      @Override
+      public Object call2(Interpreter interpreter, Object list, Object separator) {
+        if (!(list instanceof StringList)) throw error(interpreter, "join() expects a list.");
+        return String.join(string(interpreter, "join", separator), ((StringList)list).elements);
+      }
+    });
+
+    globals.define("builder", new Native(0) {
+      @Override
+      public Object call0(Interpreter interpreter) {
+        return new Builder();
+      }
+    });
+
+    globals.define("append", new Native(2) {
+      @Override
+      public Object call2(Interpreter interpreter, Object builder, Object value) {
+        if (!(builder instanceof Builder)) throw error(interpreter, "append() expects a builder.");
+        ((Builder)builder).text.append(Rope.text(value));
+        return builder;
+      }
+    });
+
+    globals.define("build", new Native(1) {
+      @Override
+      public Object call1(Interpreter interpreter, Object builder) {
+        if (!(builder instanceof Builder)) throw error(interpreter, "build() expects a builder.");
+        return ((Builder)builder).text.toString();
+      }
+    });
+  }
+
+  private static CharSequence string(Interpreter interpreter, String function, Object value) {
+    if (value instanceof CharSequence) return (CharSequence)value;
+    throw error(interpreter, function + "() expects a string.");
+  }
+
+  // A whole number from 0 to `max`
+  private static int index(Interpreter interpreter, String function, Object value, int max) {
+    if (!(value instanceof Double)) throw error(interpreter, function + "() expects a number.");
+    double number = (double)value;
+    if (number != Math.floor(number) || number < 0 || number > max) {
+      throw error(interpreter, function + "() index " + Interpreter.stringify(value) +
+          " is out of bounds.");
+    }
+    return (int)number;
+  }
+
+  private static RuntimeError error(Interpreter interpreter, String message) {
+    return new RuntimeError(interpreter.callLine, message);
+  }
+}
@@ -0,0 +1,1065 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Executable nodes produced by NodeCompiler. Unlike Expr/Stmt, every node
+ * already knows what it does: there is one class per operator, per kind of
+ * variable access and per call arity, so evaluating a node is a single
+ * virtual call into a small method instead of `accept` + `visit*` + `switch`.
+ *
+ * Statements are nodes too, they're executed instead and complete with a
+ * signal, see execute.
+ */
+abstract class Node {
+  abstract Object evaluate(Environment environment);
+
+  /*
+   * Runs the node as a statement and returns how it completed, the same
+   * signals the tree engine uses: null, Interpreter.BREAK, or
+   * Interpreter.RETURN with the value left in the interpreter's
+   * `returnValue`. Loops and function calls stop them, nothing unwinds the
+   * Java stack.
+   */
+  Object execute(Environment environment) {
+    evaluate(environment);
+    return null;
+  }
+
+  // == Literals and operators ==
+
+  static final class Literal extends Node {
+    private final Object value;
+
+    Literal(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return value;
+    }
+  }
+
+  static final class Not extends Node {
+    private final Node right;
+
+    Not(Node right) {
+      this.right = right;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return !Interpreter.isTruthy(right.evaluate(environment));
+    }
+  }
+
+  static final class Negate extends Node {
+    private final Token operator;
+    private final Node right;
+
+    Negate(Token operator, Node right) {
+      this.operator = operator;
+      this.right = right;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object value = right.evaluate(environment);
+      Interpreter.checkNumberOperand(operator, value);
+      return -(double)value;
+    }
+  }
+
+  static final class And extends Node {
+    private final Node left;
+    private final Node right;
+
+    And(Node left, Node right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object value = left.evaluate(environment);
+      if (!Interpreter.isTruthy(value)) return value;
+      return right.evaluate(environment);
+    }
+  }
+
+  static final class Or extends Node {
+    private final Node left;
+    private final Node right;
+
+    Or(Node left, Node right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object value = left.evaluate(environment);
+      if (Interpreter.isTruthy(value)) return value;
+      return right.evaluate(environment);
+    }
+  }
+
+  /*
+   * Base for binary operators. Every operator has its own `evaluate` so each
+   * call site of `left`/`right` stays in a small method of its own. Both
+   * operands are evaluated left to right before the operator runs, same as
+   * in Interpreter.
+   */
+  abstract static class Binary extends Node {
+    final Token operator;
+    final Node left;
+    final Node right;
+
+    Binary(Token operator, Node left, Node right) {
+      this.operator = operator;
+      this.left = left;
+      this.right = right;
+    }
+  }
+
+  /*
+   * Operators that work on more than one type of operand. A site usually
+   * sees the same types for its whole life, so the first evaluation picks a
+   * specialization from the operands and later ones only check its guard.
+   * Operands that fail the guard deoptimize the site to the generic
+   * operator, which it then keeps.
+   */
+  abstract static class Specializing extends Binary {
+    static final int UNINITIALIZED = 0;
+    static final int NUMBERS = 1;
+    static final int STRINGS = 2;
+    static final int GENERIC = 3;
+    private static final String[] NAMES = { "uninitialized", "numbers", "strings", "generic" };
+
+    private final Specializations specializations;
+    int state = UNINITIALIZED;
+
+    Specializing(Token operator, Node left, Node right, Specializations specializations) {
+      super(operator, left, right);
+      this.specializations = specializations;
+    }
+
+    // Called when the operands don't fit the current state
+    final void specialize(Object a, Object b) {
+      if (state != UNINITIALIZED) {
+        specializations.deoptimize(operator, NAMES[state]);
+        state = GENERIC;
+      } else if (a instanceof Double && b instanceof Double) {
+        state = NUMBERS;
+        specializations.specialized++;
+      } else if (a instanceof CharSequence && b instanceof CharSequence) {
+        state = STRINGS;
+        specializations.specialized++;
+      } else {
+        state = GENERIC;
+      }
+    }
+  }
+
+  static final class Comma extends Binary {
+    Comma(Token operator, Node left, Node right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      left.evaluate(environment);
+      return right.evaluate(environment);
+    }
+  }
+
+  static final class Equal extends Specializing {
+    Equal(Token operator, Node left, Node right, Specializations specializations) {
+      super(operator, left, right, specializations);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+      switch (state) {
+        case NUMBERS:
+          if (a instanceof Double && b instanceof Double) {
+            return Double.doubleToLongBits((double)a) == Double.doubleToLongBits((double)b);
+          }
+          break;
+        case STRINGS:
+          if (a instanceof CharSequence && b instanceof CharSequence) {
+            return Interpreter.isEqual(a, b);
+          }
+          break;
+        case GENERIC:
+          return Interpreter.isEqual(a, b);
+      }
+      specialize(a, b);
+      return Interpreter.isEqual(a, b);
+    }
+  }
+
+  static final class NotEqual extends Specializing {
+    NotEqual(Token operator, Node left, Node right, Specializations specializations) {
+      super(operator, left, right, specializations);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+      switch (state) {
+        case NUMBERS:
+          if (a instanceof Double && b instanceof Double) {
+            return Double.doubleToLongBits((double)a) != Double.doubleToLongBits((double)b);
+          }
+          break;
+        case STRINGS:
+          if (a instanceof CharSequence && b instanceof CharSequence) {
+            return !Interpreter.isEqual(a, b);
+          }
+          break;
+        case GENERIC:
+          return !Interpreter.isEqual(a, b);
+      }
+      specialize(a, b);
+      return !Interpreter.isEqual(a, b);
+    }
+  }
+
+  static final class Greater extends Binary {
+    Greater(Token operator, Node left, Node right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double)a > (double)b;
+    }
+  }
+
+  static final class GreaterEqual extends Binary {
+    GreaterEqual(Token operator, Node left, Node right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double)a >= (double)b;
+    }
+  }
+
+  static final class Less extends Binary {
+    Less(Token operator, Node left, Node right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double)a < (double)b;
+    }
+  }
+
+  static final class LessEqual extends Binary {
+    LessEqual(Token operator, Node left, Node right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double)a <= (double)b;
+    }
+  }
+
+  static final class Subtract extends Binary {
+    Subtract(Token operator, Node left, Node right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double)a - (double)b;
+    }
+  }
+
+  static final class Add extends Specializing {
+    Add(Token operator, Node left, Node right, Specializations specializations) {
+      super(operator, left, right, specializations);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+      switch (state) {
+        case NUMBERS:
+          if (a instanceof Double && b instanceof Double) return (double)a + (double)b;
+          break;
+        case STRINGS:
+          if (a instanceof CharSequence && b instanceof CharSequence) {
+            return Rope.concat((CharSequence)a, (CharSequence)b);
+          }
+          break;
+        case GENERIC:
+          return Interpreter.binary(operator, a, b);
+      }
+      specialize(a, b);
+      return Interpreter.binary(operator, a, b);
+    }
+  }
+
+  static final class Divide extends Binary {
+    Divide(Token operator, Node left, Node right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+      Interpreter.checkNumberOperands(operator, a, b);
+      if ((double)b == 0) throw new RuntimeError(operator, "Can't divide by zero.");
+      return (double)a / (double)b;
+    }
+  }
+
+  static final class Multiply extends Binary {
+    Multiply(Token operator, Node left, Node right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double)a * (double)b;
+    }
+  }
+
+  // == Variables ==
+
+  // Variable in the current frame
+  static final class LocalGet extends Node {
+    private final int slot;
+
+    LocalGet(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return environment.get(slot);
+    }
+  }
+
+  static final class LocalSet extends Node {
+    private final int slot;
+    private final Node value;
+
+    LocalSet(int slot, Node value) {
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object result = value.evaluate(environment);
+      environment.assign(slot, result);
+      return result;
+    }
+  }
+
+  // Captured variable declared in the current frame, its slot holds the cell
+  static final class CellGet extends Node {
+    private final int slot;
+
+    CellGet(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return environment.cell(slot).value;
+    }
+  }
+
+  static final class CellSet extends Node {
+    private final int slot;
+    private final Node value;
+
+    CellSet(int slot, Node value) {
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object result = value.evaluate(environment);
+      environment.cell(slot).value = result;
+      return result;
+    }
+  }
+
+  // Variable the function captured from the ones around it
+  static final class UpvalueGet extends Node {
+    private final int index;
+
+    UpvalueGet(int index) {
+      this.index = index;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return environment.upvalues[index].value;
+    }
+  }
+
+  static final class UpvalueSet extends Node {
+    private final int index;
+    private final Node value;
+
+    UpvalueSet(int index, Node value) {
+      this.index = index;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object result = value.evaluate(environment);
+      environment.upvalues[index].value = result;
+      return result;
+    }
+  }
+
+  static final class GlobalGet extends Node {
+    private final Token name;
+    private final int slot;
+    private final Globals globals;
+
+    GlobalGet(Token name, int slot, Globals globals) {
+      this.name = name;
+      this.slot = slot;
+      this.globals = globals;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return globals.get(slot, name);
+    }
+  }
+
+  static final class GlobalSet extends Node {
+    private final Token name;
+    private final int slot;
+    private final Globals globals;
+    private final Node value;
+
+    GlobalSet(Token name, int slot, Globals globals, Node value) {
+      this.name = name;
+      this.slot = slot;
+      this.globals = globals;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object result = value.evaluate(environment);
+      globals.assign(slot, name, result);
+      return result;
+    }
+  }
+
+  // Initializes a variable in the current frame
+  static final class DefineLocal extends Node {
+    private final int slot;
+    private final Node value;
+
+    DefineLocal(int slot, Node value) {
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      environment.assign(slot, value.evaluate(environment));
+      return null;
+    }
+  }
+
+  // The cell comes first, a closure in the initializer can capture it
+  static final class DefineCell extends Node {
+    private final int slot;
+    private final Node value;
+
+    DefineCell(int slot, Node value) {
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Cell cell = new Cell(null);
+      environment.assign(slot, cell);
+      cell.value = value.evaluate(environment);
+      return null;
+    }
+  }
+
+  static final class DefineGlobal extends Node {
+    private final int slot;
+    private final Globals globals;
+    private final Node value;
+
+    DefineGlobal(int slot, Globals globals, Node value) {
+      this.slot = slot;
+      this.globals = globals;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      globals.define(slot, value.evaluate(environment));
+      return null;
+    }
+  }
+
+  // == Calls ==
+
+  abstract static class Call extends Node {
+    final Interpreter interpreter;
+    final Token paren;
+    private final Node callee;
+    private final int count;
+    // Last callee whose arity matched, it isn't checked again
+    private LoxCallable checked = null;
+
+    Call(Interpreter interpreter, Token paren, Node callee, int count) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.callee = callee;
+      this.count = count;
+    }
+
+    final LoxCallable callee(Environment environment) {
+      Object value = callee.evaluate(environment);
+      if (!(value instanceof LoxCallable)) {
+        throw new RuntimeError(paren, "Only functions and classes are callable.");
+      }
+      return (LoxCallable)value;
+    }
+
+    final void checkArity(LoxCallable function) {
+      if (function == checked) return;
+      Node.checkArity(paren, function.arity(), count);
+      checked = function;
+    }
+  }
+
+  static final class Call0 extends Call {
+    Call0(Interpreter interpreter, Token paren, Node callee) {
+      super(interpreter, paren, callee, 0);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      LoxCallable function = callee(environment);
+      checkArity(function);
+      return interpreter.call(function, paren);
+    }
+  }
+
+  static final class Call1 extends Call {
+    private final Node a;
+
+    Call1(Interpreter interpreter, Token paren, Node callee, Node a) {
+      super(interpreter, paren, callee, 1);
+      this.a = a;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      LoxCallable function = callee(environment);
+      Object first = a.evaluate(environment);
+      checkArity(function);
+      return interpreter.call(function, paren, first);
+    }
+  }
+
+  static final class Call2 extends Call {
+    private final Node a;
+    private final Node b;
+
+    Call2(Interpreter interpreter, Token paren, Node callee, Node a, Node b) {
+      super(interpreter, paren, callee, 2);
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      LoxCallable function = callee(environment);
+      Object first = a.evaluate(environment);
+      Object second = b.evaluate(environment);
+      checkArity(function);
+      return interpreter.call(function, paren, first, second);
+    }
+  }
+
+  static final class Call3 extends Call {
+    private final Node a;
+    private final Node b;
+    private final Node c;
+
+    Call3(Interpreter interpreter, Token paren, Node callee, Node a, Node b, Node c) {
+      super(interpreter, paren, callee, 3);
+      this.a = a;
+      this.b = b;
+      this.c = c;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      LoxCallable function = callee(environment);
+      Object first = a.evaluate(environment);
+      Object second = b.evaluate(environment);
+      Object third = c.evaluate(environment);
+      checkArity(function);
+      return interpreter.call(function, paren, first, second, third);
+    }
+  }
+
+  static final class CallN extends Call {
+    private final Node[] arguments;
+
+    CallN(Interpreter interpreter, Token paren, Node callee, Node[] arguments) {
+      super(interpreter, paren, callee, arguments.length);
+      this.arguments = arguments;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      LoxCallable function = callee(environment);
+      Object[] values = evaluateAll(arguments, environment);
+      checkArity(function);
+      return interpreter.call(function, values, paren);
+    }
+  }
+
+  // `object.name(...)`, calls a method without creating a bound method
+  static final class Invoke extends Node {
+    private final Interpreter interpreter;
+    private final Token paren;
+    private final Node object;
+    private final Token name;
+    private final PropertyCache cache;
+    private final Node[] arguments;
+
+    Invoke(Interpreter interpreter, Token paren, Node object, Token name, PropertyCache cache,
+        Node[] arguments) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.object = object;
+      this.name = name;
+      this.cache = cache;
+      this.arguments = arguments;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object value = object.evaluate(environment);
+      if (!(value instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances can have properties.");
+      }
+
+      // Fields shadow methods
+      LoxInstance instance = (LoxInstance)value;
+      int slot = instance.slotOf(cache);
+      if (slot != -1) {
+        Object callee = instance.getField(slot);
+        if (!(callee instanceof LoxCallable)) {
+          throw new RuntimeError(paren, "Only functions and classes are callable.");
+        }
+        LoxCallable function = (LoxCallable)callee;
+        Object[] values = evaluateAll(arguments, environment);
+        checkArity(paren, function.arity(), values.length);
+        return interpreter.call(function, values, paren);
+      }
+
+      LoxFunction method = instance.klass.findMethod(name.symbol);
+      if (method == null) {
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+      }
+      Object[] values = evaluateAll(arguments, environment);
+      checkArity(paren, method.arity(), values.length);
+      return interpreter.invoke(method, instance, values, paren);
+    }
+  }
+
+  // `super.name(...)`
+  static final class SuperInvoke extends Node {
+    private final Interpreter interpreter;
+    private final Token paren;
+    private final Token method;
+    private final Node superclass;
+    private final Node receiver;
+    private final Node[] arguments;
+
+    SuperInvoke(Interpreter interpreter, Token paren, Token method, Node superclass,
+        Node receiver, Node[] arguments) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.method = method;
+      this.superclass = superclass;
+      this.receiver = receiver;
+      this.arguments = arguments;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      LoxFunction function = Super.method(method, superclass.evaluate(environment));
+      LoxInstance receiver = (LoxInstance)this.receiver.evaluate(environment);
+      Object[] values = evaluateAll(arguments, environment);
+      checkArity(paren, function.arity(), values.length);
+      return interpreter.invoke(function, receiver, values, paren);
+    }
+  }
+
+  private static Object[] evaluateAll(Node[] nodes, Environment environment) {
+    Object[] values = new Object[nodes.length];
+    for (int i = 0; i < nodes.length; i++) {
+      values[i] = nodes[i].evaluate(environment);
+    }
+    return values;
+  }
+
+  private static void checkArity(Token paren, int arity, int count) {
+    if (count != arity) {
+      throw new RuntimeError(paren, "Expected " + arity + " arguments but got " + count + ".");
+    }
+  }
+
+  // == Functions and classes ==
+
+  static final class Closure extends Node {
+    private final String name;
+    private final Expr.Function declaration;
+    // Null for a lazy function until one made here is called
+    private Node body;
+    private final NodeCompiler compiler;
+    private final boolean isMethod;
+    private final boolean isInitializer;
+
+    Closure(String name, Expr.Function declaration, Node body, NodeCompiler compiler,
+        boolean isMethod, boolean isInitializer) {
+      this.name = name;
+      this.declaration = declaration;
+      this.body = body;
+      this.compiler = compiler;
+      this.isMethod = isMethod;
+      this.isInitializer = isInitializer;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Cell[] upvalues = null;
+      if (declaration.captures.length != 0) upvalues = environment.capture(declaration.captures);
+      return new NodeFunction(name, declaration, upvalues, isMethod, isInitializer, this, body);
+    }
+
+    // Compiled once for all the functions made here, see LazyFunction
+    Node body() {
+      if (body == null) body = compiler.body(declaration);
+      return body;
+    }
+  }
+
+  static final class Class extends Node {
+    private final Token name;
+    private final Token superclassName;
+    private final Node superclass;
+    private final Symbol[] methodNames;
+    private final Closure[] methods;
+    // Where the class is stored, see Resolver
+    private final int kind;
+    private final int slot;
+    private final int superSlot;
+    private final Globals globals;
+
+    Class(Token name, Token superclassName, Node superclass, Symbol[] methodNames, Closure[] methods,
+        int kind, int slot, int superSlot, Globals globals) {
+      this.name = name;
+      this.superclassName = superclassName;
+      this.superclass = superclass;
+      this.methodNames = methodNames;
+      this.methods = methods;
+      this.kind = kind;
+      this.slot = slot;
+      this.superSlot = superSlot;
+      this.globals = globals;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object parent = null;
+      if (superclass != null) {
+        parent = superclass.evaluate(environment);
+        if (!(parent instanceof LoxClass)) {
+          throw new RuntimeError(superclassName, "Superclass must be a class");
+        }
+      }
+
+      // Because we define class first it can reference itself inside it's own methods
+      Cell cell = null;
+      if (kind == Resolver.CELL) {
+        cell = new Cell(null);
+        environment.assign(slot, cell);
+      }
+
+      // Methods capture `super` from its slot, at the top level it has a
+      // frame of its own
+      Environment frame = environment;
+      if (parent != null) {
+        if (frame == null) frame = new Environment(null, 1);
+        frame.assign(superSlot, new Cell(parent));
+      }
+
+      Map<Symbol, LoxFunction> table = new HashMap<>();
+      for (int i = 0; i < methods.length; i++) {
+        table.put(methodNames[i], (LoxFunction)methods[i].evaluate(frame));
+      }
+
+      LoxClass klass = new LoxClass(name.lexeme, (LoxClass)parent, table);
+
+      if (cell != null) {
+        cell.value = klass;
+      } else if (kind == Resolver.LOCAL) {
+        environment.assign(slot, klass);
+      } else {
+        globals.define(slot, klass);
+      }
+      return null;
+    }
+  }
+
+  static final class Get extends Node {
+    private final Node object;
+    private final Token name;
+    private final PropertyCache cache;
+
+    Get(Node object, Token name, PropertyCache cache) {
+      this.object = object;
+      this.name = name;
+      this.cache = cache;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object value = object.evaluate(environment);
+      if (value instanceof LoxInstance) {
+        return ((LoxInstance)value).get(name, cache);
+      }
+      throw new RuntimeError(name, "Only instances can have properties.");
+    }
+  }
+
+  static final class Set extends Node {
+    private final Node object;
+    private final Token name;
+    private final PropertyCache cache;
+    private final Node value;
+
+    Set(Node object, Token name, PropertyCache cache, Node value) {
+      this.object = object;
+      this.name = name;
+      this.cache = cache;
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object target = object.evaluate(environment);
+      if (!(target instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances  have fields.");
+      }
+      Object result = value.evaluate(environment);
+      ((LoxInstance)target).set(cache, result);
+      return result;
+    }
+  }
+
+  static final class Super extends Node {
+    private final Token method;
+    private final Node superclass;
+    private final Node receiver;
+
+    Super(Token method, Node superclass, Node receiver) {
+      this.method = method;
+      this.superclass = superclass;
+      this.receiver = receiver;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      LoxFunction function = method(method, superclass.evaluate(environment));
+      return function.bind((LoxInstance)receiver.evaluate(environment));
+    }
+
+    static LoxFunction method(Token method, Object superclass) {
+      LoxFunction function = ((LoxClass)superclass).findMethod(method.symbol);
+
+      if (function == null) {
+        throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+      }
+      return function;
+    }
+  }
+
+  // == Statements ==
+
+  // Nodes that are only ever executed, they can complete with a signal
+  abstract static class Statement extends Node {
+    @Override
+    final Object evaluate(Environment environment) {
+      execute(environment);
+      return null;
+    }
+
+    @Override
+    abstract Object execute(Environment environment);
+  }
+
+  static final class Print extends Node {
+    private final Interpreter interpreter;
+    private final Node expression;
+
+    Print(Interpreter interpreter, Node expression) {
+      this.interpreter = interpreter;
+      this.expression = expression;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      interpreter.output.println(expression.evaluate(environment));
+      return null;
+    }
+  }
+
+  // Runs statements one after another in the current environment
+  static final class Sequence extends Statement {
+    private final Node[] statements;
+
+    Sequence(Node[] statements) {
+      this.statements = statements;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      for (Node statement : statements) {
+        Object completion = statement.execute(environment);
+        if (completion != null) return completion;
+      }
+      return null;
+    }
+  }
+
+  // Block at the top level, it has a frame of its own
+  static final class Block extends Statement {
+    private final Node body;
+    private final int slots;
+
+    Block(Node body, int slots) {
+      this.body = body;
+      this.slots = slots;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return body.execute(new Environment(null, slots));
+    }
+  }
+
+  static final class If extends Statement {
+    private final Node condition;
+    private final Node thenBranch;
+    private final Node elseBranch;
+
+    If(Node condition, Node thenBranch, Node elseBranch) {
+      this.condition = condition;
+      this.thenBranch = thenBranch;
+      this.elseBranch = elseBranch;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      if (Interpreter.isTruthy(condition.evaluate(environment))) {
+        return thenBranch.execute(environment);
+      } else if (elseBranch != null) {
+        return elseBranch.execute(environment);
+      }
+      return null;
+    }
+  }
+
+  static final class While extends Statement {
+    private final Node condition;
+    private final Node body;
+
+    While(Node condition, Node body) {
+      this.condition = condition;
+      this.body = body;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      while (Interpreter.isTruthy(condition.evaluate(environment))) {
+        Object completion = body.execute(environment);
+        if (completion == Interpreter.BREAK) break;
+        if (completion != null) return completion;
+      }
+      return null;
+    }
+  }
+
+  static final class BreakLoop extends Statement {
+    @Override
+    Object execute(Environment environment) {
+      return Interpreter.BREAK;
+    }
+  }
+
+  static final class ReturnValue extends Statement {
+    private final Interpreter interpreter;
+    private final Node value;
+
+    ReturnValue(Interpreter interpreter, Node value) {
+      this.interpreter = interpreter;
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      interpreter.returnValue = value == null ? null : value.evaluate(environment);
+      return Interpreter.RETURN;
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/*
+ * NodeCompiler turns resolved Expr/Stmt trees into executable Nodes. It runs
+ * once after Resolver, so all the decisions Interpreter makes on every
+ * evaluation (which operator, local or global, how many arguments) are made
+ * here once and baked into the node classes.
+ */
+class NodeCompiler implements Expr.Visitor<Node>, Stmt.Visitor<Node> {
+  private final Interpreter interpreter;
+  private final Globals globals;
+  private final Specializations specializations;
+
+  NodeCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+    this.globals = interpreter.globals;
+    this.specializations = interpreter.specializations;
+  }
+
+  Node compile(List<Stmt> statements) {
+    Node[] nodes = new Node[statements.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = compile(statements.get(i));
+    }
+    return new Node.Sequence(nodes);
+  }
+
+  private Node compile(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Node compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  @Override
+  public Node visitAssignExpr(Expr.Assign expr) {
+    Node value = compile(expr.value);
+    switch (expr.kind) {
+      case Resolver.LOCAL: return new Node.LocalSet(expr.slot, value);
+      case Resolver.CELL: return new Node.CellSet(expr.slot, value);
+      case Resolver.UPVALUE: return new Node.UpvalueSet(expr.slot, value);
+      default: return new Node.GlobalSet(expr.name, expr.slot, globals, value);
+    }
+  }
+
+  @Override
+  public Node visitBinaryExpr(Expr.Binary expr) {
+    Token operator = expr.operator;
+    Node left = compile(expr.left);
+    Node right = compile(expr.right);
+
+    switch (operator.type) {
+      case COMMA: return new Node.Comma(operator, left, right);
+      case BANG_EQUAL: return new Node.NotEqual(operator, left, right, specializations);
+      case EQUAL_EQUAL: return new Node.Equal(operator, left, right, specializations);
+      case GREATER: return new Node.Greater(operator, left, right);
+      case GREATER_EQUAL: return new Node.GreaterEqual(operator, left, right);
+      case LESS: return new Node.Less(operator, left, right);
+      case LESS_EQUAL: return new Node.LessEqual(operator, left, right);
+      case MINUS: return new Node.Subtract(operator, left, right);
+      case PLUS: return new Node.Add(operator, left, right, specializations);
+      case SLASH: return new Node.Divide(operator, left, right);
+      case STAR: return new Node.Multiply(operator, left, right);
+      default:
+        throw new IllegalStateException("Unknown binary operator " + operator.type);
+    }
+  }
+
+  @Override
+  public Node visitCallExpr(Expr.Call expr) {
+    Node[] arguments = new Node[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+
+    // Methods called right away are invoked on their receiver without binding
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get)expr.callee;
+      return new Node.Invoke(interpreter, expr.paren, compile(get.object), get.name, get.cache,
+          arguments);
+    }
+    if (expr.callee instanceof Expr.Super) {
+      Expr.Super callee = (Expr.Super)expr.callee;
+      return new Node.SuperInvoke(interpreter, expr.paren, callee.method,
+          variable(callee.keyword, callee.kind, callee.slot),
+          variable(callee.keyword, callee.thisKind, callee.thisSlot), arguments);
+    }
+
+    Node callee = compile(expr.callee);
+
+    switch (arguments.length) {
+      case 0: return new Node.Call0(interpreter, expr.paren, callee);
+      case 1: return new Node.Call1(interpreter, expr.paren, callee, arguments[0]);
+      case 2: return new Node.Call2(interpreter, expr.paren, callee, arguments[0], arguments[1]);
+      case 3:
+        return new Node.Call3(interpreter, expr.paren, callee, arguments[0], arguments[1],
+            arguments[2]);
+      default: return new Node.CallN(interpreter, expr.paren, callee, arguments);
+    }
+  }
+
+  @Override
+  public Node visitGetExpr(Expr.Get expr) {
+    return new Node.Get(compile(expr.object), expr.name, expr.cache);
+  }
+
+  @Override
+  public Node visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public Node visitLiteralExpr(Expr.Literal expr) {
+    return new Node.Literal(expr.value);
+  }
+
+  @Override
+  public Node visitLogicalExpr(Expr.Logical expr) {
+    Node left = compile(expr.left);
+    Node right = compile(expr.right);
+    if (expr.operator.type == TokenType.OR) return new Node.Or(left, right);
+    return new Node.And(left, right);
+  }
+
+  @Override
+  public Node visitSetExpr(Expr.Set expr) {
+    return new Node.Set(compile(expr.object), expr.name, expr.cache, compile(expr.value));
+  }
+
+  @Override
+  public Node visitSuperExpr(Expr.Super expr) {
+    return new Node.Super(expr.method, variable(expr.keyword, expr.kind, expr.slot),
+        variable(expr.keyword, expr.thisKind, expr.thisSlot));
+  }
+
+  @Override
+  public Node visitThisExpr(Expr.This expr) {
+    return variable(expr.keyword, expr.kind, expr.slot);
+  }
+
+  @Override
+  public Node visitUnaryExpr(Expr.Unary expr) {
+    Node right = compile(expr.right);
+    if (expr.operator.type == TokenType.BANG) return new Node.Not(right);
+    return new Node.Negate(expr.operator, right);
+  }
+
+  @Override
+  public Node visitVariableExpr(Expr.Variable expr) {
+    return variable(expr.name, expr.kind, expr.slot);
+  }
+
+  @Override
+  public Node visitFunctionExpr(Expr.Function expr) {
+    return closure(null, expr, false, false);
+  }
+
+  @Override
+  public Node visitBlockStmt(Stmt.Block stmt) {
+    Node body = compile(stmt.statements);
+    // Only blocks at the top level have a frame, others use the function's
+    if (stmt.slots == -1) return body;
+    return new Node.Block(body, stmt.slots);
+  }
+
+  @Override
+  public Node visitClassStmt(Stmt.Class stmt) {
+    Node superclass = null;
+    Token superclassName = null;
+    if (stmt.superclass != null) {
+      superclass = compile(stmt.superclass);
+      superclassName = stmt.superclass.name;
+    }
+
+    Symbol[] methodNames = new Symbol[stmt.methods.size()];
+    Node.Closure[] methods = new Node.Closure[methodNames.length];
+    for (int i = 0; i < methods.length; i++) {
+      Stmt.Function method = stmt.methods.get(i);
+      methodNames[i] = method.name.symbol;
+      methods[i] = closure(stmt.name.lexeme, method.function, true, method.name.lexeme.equals("init"));
+    }
+
+    return new Node.Class(stmt.name, superclassName, superclass, methodNames, methods,
+        stmt.kind, stmt.slot, stmt.superSlot, globals);
+  }
+
+  @Override
+  public Node visitExpressionStmt(Stmt.Expression stmt) {
+    Node expression = compile(stmt.expression);
+    // Print expression in REPL after executing it
+    if (interpreter.isREPL) return new Node.Print(interpreter, expression);
+    return expression;
+  }
+
+  @Override
+  public Node visitFunctionStmt(Stmt.Function stmt) {
+    return define(stmt.kind, stmt.slot, closure(stmt.name.lexeme, stmt.function, false, false));
+  }
+
+  @Override
+  public Node visitIfStmt(Stmt.If stmt) {
+    Node elseBranch = stmt.elseBranch == null ? null : compile(stmt.elseBranch);
+    return new Node.If(compile(stmt.condition), compile(stmt.thenBranch), elseBranch);
+  }
+
+  @Override
+  public Node visitPrintStmt(Stmt.Print stmt) {
+    return new Node.Print(interpreter, compile(stmt.expression));
+  }
+
+  @Override
+  public Node visitReturnStmt(Stmt.Return stmt) {
+    return new Node.ReturnValue(interpreter, stmt.value == null ? null : compile(stmt.value));
+  }
+
+  @Override
+  public Node visitVarStmt(Stmt.Var stmt) {
+    Node value = stmt.initializer == null ? new Node.Literal(null) : compile(stmt.initializer);
+    return define(stmt.kind, stmt.slot, value);
+  }
+
+  @Override
+  public Node visitWhileStmt(Stmt.While stmt) {
+    return new Node.While(compile(stmt.condition), compile(stmt.body));
+  }
+
+  @Override
+  public Node visitBreakStmt(Stmt.Break stmt) {
+    return new Node.BreakLoop();
+  }
+
+  private Node variable(Token name, int kind, int slot) {
+    switch (kind) {
+      case Resolver.LOCAL: return new Node.LocalGet(slot);
+      case Resolver.CELL: return new Node.CellGet(slot);
+      case Resolver.UPVALUE: return new Node.UpvalueGet(slot);
+      default: return new Node.GlobalGet(name, slot, globals);
+    }
+  }
+
+  private Node define(int kind, int slot, Node value) {
+    switch (kind) {
+      case Resolver.LOCAL: return new Node.DefineLocal(slot, value);
+      case Resolver.CELL: return new Node.DefineCell(slot, value);
+      default: return new Node.DefineGlobal(slot, globals, value);
+    }
+  }
+
+  private Node.Closure closure(String name, Expr.Function function, boolean isMethod,
+      boolean isInitializer) {
+    // A lazy body is compiled on the first call
+    Node body = function.body == null ? null : compile(function.body);
+    return new Node.Closure(name, function, body, this, isMethod, isInitializer);
+  }
+
+  // Links and compiles the body of a lazy function, see LazyFunction
+  Node body(Expr.Function function) {
+    new Linker(globals).linkBody(function);
+    return compile(function.body);
+  }
+}
@@ -0,0 +1,38 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * Function whose body was compiled to Nodes by NodeCompiler. It shares
+ * everything with LoxFunction except how the body gets executed, so classes
+ * and instances work the same for both engines.
+ */
+class NodeFunction extends LoxFunction {
+  private final Node.Closure closure;
+  // Null until the first call if the function is lazy
+  private Node body;
+
+  NodeFunction(String name, Expr.Function declaration, Cell[] upvalues, boolean isMethod,
+      boolean isInitializer, Node.Closure closure, Node body) {
+    super(name, declaration, upvalues, isMethod, isInitializer);
+    this.closure = closure;
+    this.body = body;
+  }
+
+  // The nodes engine has no JIT tier, every call comes here first though
+  @Override
+  CompiledFunction compiled(Interpreter interpreter) {
+    if (body == null) body = closure.body();
+    return null;
+  }
+
+  @Override
+  Object execute(Interpreter interpreter, Environment environment, LoxInstance receiver) {
+    environment.box(declaration.cells);
+    Object completion = body.execute(environment);
+
+    // Always return `this` from initializer, even after an empty `return`
+    if (isInitializer) return receiver;
+
+    if (completion == Interpreter.RETURN) return interpreter.returnValue;
+    return null;
+  }
+}
@@ -0,0 +1,64 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * Instruction set of the bytecode VM. Opcodes are plain ints so the VM can
+ * dispatch on them with a `switch` over a dense table. Operands follow the
+ * opcode in the code array, one int each.
+ */
+final class OpCode {
+  private OpCode() {}
+
+  static final int CONSTANT = 0;         // [constant index]
+  static final int NIL = 1;
+  static final int TRUE = 2;
+  static final int FALSE = 3;
+  static final int POP = 4;
+  static final int GET_LOCAL = 5;        // [slot]
+  static final int SET_LOCAL = 6;        // [slot]
+  static final int GET_GLOBAL = 7;       // [global slot]
+  static final int DEFINE_GLOBAL = 8;    // [global slot]
+  static final int SET_GLOBAL = 9;       // [global slot]
+  static final int GET_UPVALUE = 10;     // [upvalue index]
+  static final int SET_UPVALUE = 11;     // [upvalue index]
+  static final int GET_PROPERTY = 12;    // [cache constant]
+  static final int SET_PROPERTY = 13;    // [cache constant]
+  static final int GET_SUPER = 14;       // [name constant]
+  static final int EQUAL = 15;
+  static final int NOT_EQUAL = 16;
+  static final int GREATER = 17;
+  static final int GREATER_EQUAL = 18;
+  static final int LESS = 19;
+  static final int LESS_EQUAL = 20;
+  static final int ADD = 21;
+  static final int SUBTRACT = 22;
+  static final int MULTIPLY = 23;
+  static final int DIVIDE = 24;
+  static final int NOT = 25;
+  static final int NEGATE = 26;
+  static final int PRINT = 27;
+  static final int JUMP = 28;            // [offset]
+  static final int JUMP_IF_FALSE = 29;   // [offset]
+  static final int LOOP = 30;            // [offset]
+  static final int CALL = 31;            // [argument count]
+  static final int CLOSURE = 32;         // [function constant] ([is local] [index])*
+  static final int CLOSE_UPVALUE = 33;
+  static final int RETURN = 34;
+  static final int CLASS = 35;           // [name constant]
+  static final int INHERIT = 36;
+  static final int METHOD = 37;          // [name constant]
+  // `object.name(...)` and `super.name(...)` without creating a bound method
+  static final int INVOKE = 41;          // [cache constant] [argument count]
+  static final int SUPER_INVOKE = 42;    // [name constant] [argument count]
+  // `return f(...);`, the callee takes over the caller's frame
+  static final int TAIL_CALL = 45;       // [argument count]
+  // `return object.name(...);`, the method takes over the caller's frame
+  static final int TAIL_INVOKE = 46;     // [cache constant] [argument count]
+
+  // Checks that let the VM report the same error as Interpreter does at the
+  // same point, before any of the following operands are evaluated.
+  static final int CHECK_SUPERCLASS = 38;
+  static final int CHECK_CALLABLE = 39;
+  static final int CHECK_INSTANCE = 40;
+  static final int CHECK_METHOD = 43;    // [cache constant]
+  static final int CHECK_SUPER_METHOD = 44; // [name constant]
+}
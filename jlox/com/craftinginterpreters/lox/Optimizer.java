@@ -0,0 +1,393 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Optional pass between the Resolver and the engines that rewrites the
+ * tree into a cheaper one with the same behavior:
+ *
+ * - operators with literal operands are folded into a literal
+ * - `and`/`or` with a literal on the left, `!!` of a boolean and `- -` of
+ *   a number are simplified
+ * - `if` with a literal condition is replaced by the branch it takes and
+ *   `while` with a false one is removed
+ * - statements after `return` or `break` in the same block are removed
+ *
+ * Folding calls the same code the Interpreter runs, so the result is
+ * exactly what it would have computed. Anything that would be a runtime
+ * error, like dividing by zero, is left alone for the engine to report.
+ *
+ * It runs after the Resolver, nodes that are kept still have their
+ * variables resolved and nodes that are rebuilt copy those fields over.
+ * Nodes are only rebuilt when one of their children changed.
+ */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  // Nodes folded, simplified or removed
+  int rewrites = 0;
+
+  List<Stmt> optimize(List<Stmt> statements) {
+    List<Stmt> result = new ArrayList<>();
+    for (int i = 0; i < statements.size(); i++) {
+      // Removed statements come back as null
+      Stmt statement = statements.get(i).accept(this);
+      if (statement == null) continue;
+      result.add(statement);
+
+      if (statement instanceof Stmt.Return || statement instanceof Stmt.Break) {
+        rewrites += statements.size() - i - 1;
+        break;
+      }
+    }
+    return result;
+  }
+
+  private Expr optimize(Expr expr) {
+    return expr.accept(this);
+  }
+
+  // Where a statement is required, a removed one becomes an empty block
+  private Stmt optimize(Stmt stmt) {
+    Stmt result = stmt.accept(this);
+    if (result == null) return new Stmt.Block(new ArrayList<>());
+    return result;
+  }
+
+  private List<Expr> optimizeAll(List<Expr> exprs) {
+    List<Expr> result = new ArrayList<>();
+    for (Expr expr : exprs) {
+      result.add(optimize(expr));
+    }
+    return result;
+  }
+
+  // Lists compare their elements with equals, nodes don't override it
+  private static boolean changed(List<?> before, List<?> after) {
+    if (before.size() != after.size()) return true;
+    for (int i = 0; i < before.size(); i++) {
+      if (before.get(i) != after.get(i)) return true;
+    }
+    return false;
+  }
+
+  private Expr.Literal literal(Object value) {
+    rewrites++;
+    // A Rope flattens itself when read, threads running the same Program
+    // would race on it
+    if (value instanceof Rope) value = value.toString();
+    return new Expr.Literal(value);
+  }
+
+  // == Expressions ==
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = optimize(expr.value);
+    if (value == expr.value) return expr;
+
+    Expr.Assign result = new Expr.Assign(expr.name, value);
+    result.kind = expr.kind;
+    result.slot = expr.slot;
+    return result;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    // A literal on the left of a comma has no effect
+    if (expr.operator.type == TokenType.COMMA && left instanceof Expr.Literal) {
+      rewrites++;
+      return right;
+    }
+
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+      try {
+        return literal(Interpreter.binary(expr.operator,
+            ((Expr.Literal)left).value, ((Expr.Literal)right).value));
+      } catch (RuntimeError error) {
+        // Reported when it runs
+      }
+    }
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = optimize(expr.callee);
+    List<Expr> arguments = optimizeAll(expr.arguments);
+    if (callee == expr.callee && !changed(expr.arguments, arguments)) return expr;
+
+    Expr.Call result = new Expr.Call(callee, expr.paren, arguments);
+    result.profile = expr.profile;
+    return result;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = optimize(expr.object);
+    if (object == expr.object) return expr;
+
+    Expr.Get result = new Expr.Get(object, expr.name);
+    result.cache = expr.cache;
+    return result;
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = optimize(expr.expression);
+    if (expression instanceof Expr.Literal) {
+      rewrites++;
+      return expression;
+    }
+
+    if (expression == expr.expression) return expr;
+    return new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    // The left operand decides which one is the result
+    if (left instanceof Expr.Literal) {
+      rewrites++;
+      boolean isTruthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+      if (expr.operator.type == TokenType.OR) return isTruthy ? left : right;
+      return isTruthy ? right : left;
+    }
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = optimize(expr.object);
+    Expr value = optimize(expr.value);
+    if (object == expr.object && value == expr.value) return expr;
+
+    Expr.Set result = new Expr.Set(object, expr.name, value);
+    result.cache = expr.cache;
+    return result;
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+    TokenType operator = expr.operator.type;
+
+    if (right instanceof Expr.Literal) {
+      Object value = ((Expr.Literal)right).value;
+      if (operator == TokenType.BANG) return literal(!Interpreter.isTruthy(value));
+      if (value instanceof Double) return literal(-(double)value);
+    }
+
+    // Negating twice gives back the operand if it's already a boolean or a
+    // number, otherwise the inner operator converts it or fails
+    if (right instanceof Expr.Unary && ((Expr.Unary)right).operator.type == operator) {
+      Expr operand = ((Expr.Unary)right).right;
+      if (operator == TokenType.BANG ? isBoolean(operand) : isNumber(operand)) {
+        rewrites += 2;
+        return operand;
+      }
+    }
+
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitFunctionExpr(Expr.Function expr) {
+    // Optimized once it's parsed
+    if (expr.lazy != null) {
+      expr.lazy.optimize = true;
+      return expr;
+    }
+
+    List<Stmt> body = optimize(expr.body);
+    if (!changed(expr.body, body)) return expr;
+
+    Expr.Function result = new Expr.Function(expr.params);
+    result.body = body;
+    result.profile = expr.profile;
+    result.slots = expr.slots;
+    result.cells = expr.cells;
+    result.captures = expr.captures;
+    return result;
+  }
+
+  // Expressions that always evaluate to a boolean if they don't fail
+  private static boolean isBoolean(Expr expr) {
+    if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Boolean;
+    if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator.type == TokenType.BANG;
+    if (!(expr instanceof Expr.Binary)) return false;
+
+    switch (((Expr.Binary)expr).operator.type) {
+      case BANG_EQUAL:
+      case EQUAL_EQUAL:
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // Same for numbers, `+` isn't one since it also concatenates strings
+  private static boolean isNumber(Expr expr) {
+    if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Double;
+    if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+    if (!(expr instanceof Expr.Binary)) return false;
+
+    switch (((Expr.Binary)expr).operator.type) {
+      case MINUS:
+      case SLASH:
+      case STAR:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // == Statements ==
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    List<Stmt> statements = optimize(stmt.statements);
+    if (!changed(stmt.statements, statements)) return stmt;
+
+    Stmt.Block result = new Stmt.Block(statements);
+    result.slots = stmt.slots;
+    return result;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = new ArrayList<>();
+    for (Stmt.Function method : stmt.methods) {
+      methods.add((Stmt.Function)method.accept(this));
+    }
+    if (!changed(stmt.methods, methods)) return stmt;
+
+    Stmt.Class result = new Stmt.Class(stmt.name, stmt.superclass, methods);
+    result.kind = stmt.kind;
+    result.slot = stmt.slot;
+    result.superSlot = stmt.superSlot;
+    return result;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Expr.Function function = (Expr.Function)optimize(stmt.function);
+    if (function == stmt.function) return stmt;
+
+    Stmt.Function result = new Stmt.Function(stmt.name, function);
+    result.kind = stmt.kind;
+    result.slot = stmt.slot;
+    return result;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+
+    if (condition instanceof Expr.Literal) {
+      rewrites++;
+      if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+        return optimize(stmt.thenBranch);
+      }
+      return stmt.elseBranch == null ? null : stmt.elseBranch.accept(this);
+    }
+
+    Stmt thenBranch = optimize(stmt.thenBranch);
+    Stmt elseBranch = stmt.elseBranch == null ? null : stmt.elseBranch.accept(this);
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+        elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return stmt;
+
+    Expr value = optimize(stmt.value);
+    if (value == stmt.value) return stmt;
+    return new Stmt.Return(stmt.keyword, value);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) return stmt;
+
+    Expr initializer = optimize(stmt.initializer);
+    if (initializer == stmt.initializer) return stmt;
+
+    Stmt.Var result = new Stmt.Var(stmt.name, initializer);
+    result.kind = stmt.kind;
+    result.slot = stmt.slot;
+    return result;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = optimize(stmt.condition);
+
+    if (condition instanceof Expr.Literal &&
+        !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+      rewrites++;
+      return null;
+    }
+
+    Stmt body = optimize(stmt.body);
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+    return new Stmt.While(condition, body);
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+}
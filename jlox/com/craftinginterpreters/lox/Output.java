@@ -0,0 +1,48 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+/*
+ * Where `print` and the REPL write values. Lines are collected in a buffer
+ * and written to the sink when it fills up or on `flush`, which LoxContext
+ * calls after every run and host call, before reporting an error and before
+ * the REPL prompt.
+ * Line buffered output goes to the sink after every line instead.
+ */
+final class Output {
+  private static final int CAPACITY = 8192;
+  private static final String NEWLINE = System.lineSeparator();
+
+  private final PrintStream sink;
+  private final StringBuilder buffer = new StringBuilder(CAPACITY + 64);
+  boolean lineBuffered;
+
+  Output(PrintStream sink, boolean lineBuffered) {
+    this.sink = sink;
+    this.lineBuffered = lineBuffered;
+  }
+
+  // Same text as Interpreter.stringify, whole numbers go in as digits
+  void println(Object value) {
+    if (value instanceof Double && Interpreter.printsAsInt((double)value)) {
+      buffer.append((int)(double)value);
+    } else {
+      buffer.append(Interpreter.stringify(value));
+    }
+    buffer.append(NEWLINE);
+    if (lineBuffered || buffer.length() >= CAPACITY) flush();
+  }
+
+  void print(String text) {
+    buffer.append(text);
+    if (buffer.length() >= CAPACITY) flush();
+  }
+
+  void flush() {
+    if (buffer.length() > 0) {
+      sink.append(buffer);
+      buffer.setLength(0);
+    }
+    sink.flush();
+  }
+}
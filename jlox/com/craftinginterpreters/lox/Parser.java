@@ -11,11 +11,26 @@ class Parser {
   private static class ParseError extends RuntimeException {}
 
   private final List<Token> tokens;
+  private final Reporter errors;
   private int current = 0;
   private int loopLevel = 0;
+  // Set when bodies of named functions and methods may be left for their
+  // first call, see LazyFunction
+  private final PreParser preParser;
+  // The class whose methods are parsed, as the Resolver will see it
+  private Resolver.ClassType currentClass = Resolver.ClassType.NONE;
+  private Token currentClassName = null;
+  // Bodies left for later, in the order they were declared
+  final List<LazyFunction> lazyFunctions = new ArrayList<>();
 
-  Parser(List<Token> tokens) {
+  Parser(List<Token> tokens, Reporter errors) {
+    this(tokens, errors, false);
+  }
+
+  Parser(List<Token> tokens, Reporter errors, boolean lazy) {
     this.tokens = tokens;
+    this.errors = errors;
+    this.preParser = lazy ? new PreParser(tokens) : null;
   }
 
   List<Stmt> parse() {
@@ -27,6 +42,12 @@ class Parser {
     return statements;
   }
 
+  // The body of a LazyFunction, starting after its `{`
+  List<Stmt> body(int start) {
+    current = start;
+    return block();
+  }
+
   private Expr expression() {
     return assignment();
   }
@@ -55,13 +76,22 @@ class Parser {
       superclass = new Expr.Variable(previous());
     }
 
-    consume(LEFT_BRACE, "Expect '{' before class body.");
+    Resolver.ClassType enclosingClass = currentClass;
+    Token enclosingClassName = currentClassName;
+    currentClass = superclass != null ? Resolver.ClassType.SUBCLASS : Resolver.ClassType.CLASS;
+    currentClassName = name;
     List<Stmt.Function> methods = new ArrayList<>();
-    while (!check(RIGHT_BRACE) && !isAtEnd()) {
-      methods.add(function("method"));
-    }
+    try {
+      consume(LEFT_BRACE, "Expect '{' before class body.");
+      while (!check(RIGHT_BRACE) && !isAtEnd()) {
+        methods.add(function("method"));
+      }
 
-    consume(RIGHT_BRACE, "Expect '}' after class body.");
+      consume(RIGHT_BRACE, "Expect '}' after class body.");
+    } finally {
+      currentClass = enclosingClass;
+      currentClassName = enclosingClassName;
+    }
 
     return new Stmt.Class(name, superclass, methods);
   }
@@ -207,10 +237,11 @@ class Parser {
 
   private Stmt.Function function(String kind) {
     Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
-    return new Stmt.Function(name, functionBody(kind));
+    return new Stmt.Function(name, functionBody(kind, name));
   }
 
-  private Expr.Function functionBody(String kind) {
+  // `name` is null for function expressions, they're always parsed now
+  private Expr.Function functionBody(String kind, Token name) {
     consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
 
     // Parse function parameters
@@ -230,8 +261,43 @@ class Parser {
 
     // Parse the body and wrap it into statement
     consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-    List<Stmt> body = block();
-    return new Expr.Function(parameters, body);
+    if (preParser != null && name != null) {
+      Expr.Function function = lazyFunction(kind, name, parameters);
+      if (function != null) return function;
+    }
+    // `break` can't leave the function, even when it's declared inside a loop
+    int enclosingLoopLevel = this.loopLevel;
+    this.loopLevel = 0;
+    List<Stmt> body;
+    try {
+      body = block();
+    } finally {
+      this.loopLevel = enclosingLoopLevel;
+    }
+    Expr.Function function = new Expr.Function(parameters);
+    function.body = body;
+    return function;
+  }
+
+  // Skips the body if the PreParser finds nothing to report in it
+  private Expr.Function lazyFunction(String kind, Token name, List<Token> parameters) {
+    Resolver.FunctionType type = Resolver.FunctionType.FUNCTION;
+    Token className = null;
+    if (kind.equals("method")) {
+      type = name.symbol == Symbol.INIT
+          ? Resolver.FunctionType.INITIALIZER
+          : Resolver.FunctionType.METHOD;
+      className = currentClassName;
+    }
+
+    LazyFunction lazy = preParser.preparse(current, parameters, type, currentClass, className);
+    if (lazy == null) return null;
+
+    current = lazy.end;
+    lazyFunctions.add(lazy);
+    Expr.Function function = new Expr.Function(parameters);
+    function.lazy = lazy;
+    return function;
   }
 
   private List<Stmt> block() {
@@ -418,7 +484,7 @@ class Parser {
 
     if (match(IDENTIFIER)) return new Expr.Variable(previous());
 
-    if (match(FUN)) return functionBody("function");
+    if (match(FUN)) return functionBody("function", null);
 
     if (match(LEFT_PAREN)) {
       Expr expr = expression();
@@ -475,7 +541,7 @@ class Parser {
   }
 
   private ParseError error(Token token, String message) {
-    Lox.error(token, message);
+    errors.error(token, message);
     return new ParseError();
   }
 
@@ -0,0 +1,545 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+/*
+ * Checks the body of a function without building a tree for it, so the
+ * Parser can leave the rest for its first call, see LazyFunction. It walks
+ * the tokens with the grammar of the Parser and keeps scopes the way the
+ * Resolver does, and gives up on the body at the first thing either of
+ * them would report. A body it accepts parses and resolves without errors
+ * later, one it gives up on is parsed right away like every body used to
+ * be, so errors are reported exactly as before, whether the function is
+ * ever called or not.
+ *
+ * Besides matching braces, what it finds is the names the body uses
+ * without declaring them, and whether it reads them. Those are either
+ * variables of the functions around it, which the Resolver captures, or
+ * globals.
+ */
+final class PreParser {
+  // Anything the Parser or the Resolver would report
+  private static class Reject extends RuntimeException {
+    Reject() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static final Reject REJECT = new Reject();
+
+  // What an expression is, assigning is only allowed to the last two
+  private static final int VALUE = 0;
+  private static final int VARIABLE = 1;
+  private static final int PROPERTY = 2;
+
+  // Variable states, as in Resolver
+  private static final byte DECLARED = 0;
+  private static final byte DEFINED = 1;
+  private static final byte USED = 2;
+
+  private final List<Token> tokens;
+  private int current;
+
+  // Variables of the scopes the body is in, the innermost last, and the
+  // index of the first variable of each scope
+  private Symbol[] variables = new Symbol[64];
+  private byte[] states = new byte[64];
+  private int count;
+  private int[] scopes = new int[16];
+  private int depth;
+
+  private Resolver.FunctionType currentFunction;
+  private Resolver.ClassType currentClass;
+  private int loopLevel;
+  // An expression that's a VARIABLE is read or assigned once it's known
+  // which, this is its name
+  private Token variable;
+
+  // Names used without being declared, see LazyFunction
+  private final List<Symbol> names = new ArrayList<>();
+  private boolean[] reads = new boolean[16];
+
+  PreParser(List<Token> tokens) {
+    this.tokens = tokens;
+  }
+
+  /*
+   * Checks the body that starts at `start`, after the `{`. Returns null if
+   * the Parser has to parse it now, the function `className` is set for
+   * methods.
+   */
+  LazyFunction preparse(int start, List<Token> params, Resolver.FunctionType type,
+      Resolver.ClassType classType, Token className) {
+    current = start;
+    count = 0;
+    depth = 0;
+    currentFunction = type;
+    currentClass = classType;
+    loopLevel = 0;
+    names.clear();
+
+    try {
+      beginScope();
+      if (className != null) declareKeyword(Symbol.THIS);
+      for (Token param : params) {
+        define(declare(param));
+      }
+      block();
+      endScope();
+    } catch (Reject reject) {
+      return null;
+    }
+
+    return new LazyFunction(tokens, start, current, params, type, classType, className,
+        names.toArray(new Symbol[0]), Arrays.copyOf(reads, names.size()));
+  }
+
+  // == Statements, as the Parser reads them ==
+
+  private void declaration() {
+    if (match(CLASS)) {
+      classDeclaration();
+    } else if (check(FUN) && checkNext(IDENTIFIER)) {
+      advance();
+      // Declared first so it can call itself
+      Token name = consume(IDENTIFIER);
+      define(declare(name));
+      function(Resolver.FunctionType.FUNCTION, false);
+    } else if (match(VAR)) {
+      varDeclaration();
+    } else {
+      statement();
+    }
+  }
+
+  private void classDeclaration() {
+    Token name = consume(IDENTIFIER);
+    Resolver.ClassType enclosingClass = currentClass;
+    currentClass = Resolver.ClassType.CLASS;
+    define(declare(name));
+
+    boolean hasSuperclass = match(LESS);
+    if (hasSuperclass) {
+      Token superclass = consume(IDENTIFIER);
+      if (superclass.symbol == name.symbol) throw REJECT;
+      currentClass = Resolver.ClassType.SUBCLASS;
+      read(superclass);
+      beginScope();
+      declareKeyword(Symbol.SUPER);
+    }
+
+    consume(LEFT_BRACE);
+    while (!check(RIGHT_BRACE) && !isAtEnd()) {
+      Token method = consume(IDENTIFIER);
+      function(method.symbol == Symbol.INIT
+          ? Resolver.FunctionType.INITIALIZER
+          : Resolver.FunctionType.METHOD, true);
+    }
+    consume(RIGHT_BRACE);
+
+    if (hasSuperclass) endScope();
+    currentClass = enclosingClass;
+  }
+
+  private void varDeclaration() {
+    int slot = declare(consume(IDENTIFIER));
+    if (match(EQUAL)) expression();
+    consume(SEMICOLON);
+    define(slot);
+  }
+
+  private void statement() {
+    switch (peek().type) {
+      case IF:
+        advance();
+        consume(LEFT_PAREN);
+        expression();
+        consume(RIGHT_PAREN);
+        statement();
+        if (match(ELSE)) statement();
+        return;
+
+      case PRINT:
+        advance();
+        expression();
+        consume(SEMICOLON);
+        return;
+
+      case RETURN:
+        advance();
+        if (currentFunction == Resolver.FunctionType.INITIALIZER) throw REJECT;
+        if (!check(SEMICOLON)) expression();
+        consume(SEMICOLON);
+        return;
+
+      case WHILE:
+        advance();
+        consume(LEFT_PAREN);
+        expression();
+        consume(RIGHT_PAREN);
+        loop();
+        return;
+
+      case FOR:
+        advance();
+        forStatement();
+        return;
+
+      case BREAK:
+        advance();
+        if (loopLevel == 0) throw REJECT;
+        consume(SEMICOLON);
+        return;
+
+      case LEFT_BRACE:
+        advance();
+        beginScope();
+        block();
+        endScope();
+        return;
+
+      default:
+        expression();
+        consume(SEMICOLON);
+    }
+  }
+
+  /*
+   * The Parser wraps a `for` with an initializer in a block, and its body
+   * and increment in another one. The increment is read before the body
+   * here, it can't see anything the body declares either way.
+   */
+  private void forStatement() {
+    consume(LEFT_PAREN);
+
+    boolean hasInitializer = !match(SEMICOLON);
+    if (hasInitializer) {
+      beginScope();
+      if (match(VAR)) {
+        varDeclaration();
+      } else {
+        expression();
+        consume(SEMICOLON);
+      }
+    }
+
+    if (!check(SEMICOLON)) expression();
+    consume(SEMICOLON);
+
+    boolean hasIncrement = !check(RIGHT_PAREN);
+    if (hasIncrement) {
+      beginScope();
+      expression();
+      endScope();
+    }
+    consume(RIGHT_PAREN);
+
+    if (hasIncrement) beginScope();
+    loop();
+    if (hasIncrement) endScope();
+
+    if (hasInitializer) endScope();
+  }
+
+  private void loop() {
+    loopLevel++;
+    statement();
+    loopLevel--;
+  }
+
+  private void block() {
+    while (!check(RIGHT_BRACE) && !isAtEnd()) {
+      declaration();
+    }
+    consume(RIGHT_BRACE);
+  }
+
+  // Parameters and body of a function nested in the body
+  private void function(Resolver.FunctionType type, boolean isMethod) {
+    consume(LEFT_PAREN);
+    Resolver.FunctionType enclosingFunction = currentFunction;
+    currentFunction = type;
+    int enclosingLoopLevel = loopLevel;
+    loopLevel = 0;
+    beginScope();
+    if (isMethod) declareKeyword(Symbol.THIS);
+
+    if (!check(RIGHT_PAREN)) {
+      int parameters = 0;
+      do {
+        if (parameters++ == 255) throw REJECT;
+        define(declare(consume(IDENTIFIER)));
+      } while (match(COMMA));
+    }
+    consume(RIGHT_PAREN);
+
+    consume(LEFT_BRACE);
+    block();
+    endScope();
+    loopLevel = enclosingLoopLevel;
+    currentFunction = enclosingFunction;
+  }
+
+  // == Expressions ==
+
+  // An expression whose value is used
+  private void expression() {
+    use(assignment());
+  }
+
+  private int assignment() {
+    int expr = binary();
+    if (!match(EQUAL)) return expr;
+
+    if (expr == VARIABLE) {
+      Token name = variable;
+      expression();
+      resolve(name.symbol, false);
+    } else if (expr == PROPERTY) {
+      expression();
+    } else {
+      throw REJECT;
+    }
+    return VALUE;
+  }
+
+  /*
+   * The Parser has a method for every precedence level, from `or` down to
+   * `*` and `/`. Each of them reads operands separated by its operators,
+   * so together they read unary expressions separated by any of them,
+   * which is all there is to check. Precedence only matters for the tree.
+   */
+  private int binary() {
+    int expr = unary();
+    while (isBinary(peek().type)) {
+      advance();
+      use(expr);
+      use(unary());
+      expr = VALUE;
+    }
+    return expr;
+  }
+
+  private static boolean isBinary(TokenType type) {
+    switch (type) {
+      case OR:
+      case AND:
+      case BANG_EQUAL:
+      case EQUAL_EQUAL:
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+      case MINUS:
+      case PLUS:
+      case SLASH:
+      case STAR:
+        return true;
+
+      default:
+        return false;
+    }
+  }
+
+  private int unary() {
+    switch (peek().type) {
+      case BANG:
+      case MINUS:
+        advance();
+        use(unary());
+        return VALUE;
+
+      // A binary operator without its left operand
+      case PLUS:
+      case STAR:
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        throw REJECT;
+
+      default:
+        return call();
+    }
+  }
+
+  private int call() {
+    int expr = primary();
+    for (;;) {
+      if (match(LEFT_PAREN)) {
+        use(expr);
+        if (!check(RIGHT_PAREN)) {
+          int arguments = 0;
+          do {
+            if (arguments++ == 255) throw REJECT;
+            expression();
+          } while (match(COMMA));
+        }
+        consume(RIGHT_PAREN);
+        expr = VALUE;
+      } else if (match(DOT)) {
+        use(expr);
+        consume(IDENTIFIER);
+        expr = PROPERTY;
+      } else {
+        return expr;
+      }
+    }
+  }
+
+  private int primary() {
+    Token token = advance();
+    switch (token.type) {
+      case FALSE:
+      case TRUE:
+      case NIL:
+      case NUMBER:
+      case STRING:
+        return VALUE;
+
+      case SUPER:
+        consume(DOT);
+        consume(IDENTIFIER);
+        if (currentClass != Resolver.ClassType.SUBCLASS) throw REJECT;
+        resolve(Symbol.SUPER, true);
+        resolve(Symbol.THIS, true);
+        return VALUE;
+
+      case THIS:
+        if (currentClass == Resolver.ClassType.NONE) throw REJECT;
+        resolve(Symbol.THIS, true);
+        return VALUE;
+
+      case IDENTIFIER:
+        variable = token;
+        return VARIABLE;
+
+      case FUN:
+        function(Resolver.FunctionType.FUNCTION, false);
+        return VALUE;
+
+      case LEFT_PAREN:
+        expression();
+        consume(RIGHT_PAREN);
+        return VALUE;
+
+      default:
+        throw REJECT;
+    }
+  }
+
+  // == Scopes, as the Resolver keeps them ==
+
+  // Reads the variable an expression is, other expressions were read already
+  private void use(int expr) {
+    if (expr == VARIABLE) read(variable);
+  }
+
+  private void read(Token name) {
+    // A variable can't be read in its own initializer
+    for (int i = scopes[depth - 1]; i < count; i++) {
+      if (variables[i] == name.symbol && states[i] == DECLARED) throw REJECT;
+    }
+    resolve(name.symbol, true);
+  }
+
+  private void resolve(Symbol symbol, boolean isRead) {
+    for (int i = count - 1; i >= 0; i--) {
+      if (variables[i] == symbol) {
+        if (isRead && states[i] == DEFINED) states[i] = USED;
+        return;
+      }
+    }
+
+    int index = names.indexOf(symbol);
+    if (index == -1) {
+      index = names.size();
+      names.add(symbol);
+      if (index == reads.length) reads = Arrays.copyOf(reads, index * 2);
+      reads[index] = false;
+    }
+    if (isRead) reads[index] = true;
+  }
+
+  private void beginScope() {
+    if (depth == scopes.length) scopes = Arrays.copyOf(scopes, depth * 2);
+    scopes[depth++] = count;
+  }
+
+  // The Resolver reports the variables of a scope that were never read
+  private void endScope() {
+    int first = scopes[--depth];
+    for (int i = first; i < count; i++) {
+      if (states[i] != USED) throw REJECT;
+    }
+    count = first;
+  }
+
+  // Returns the variable's index for define
+  private int declare(Token name) {
+    for (int i = scopes[depth - 1]; i < count; i++) {
+      if (variables[i] == name.symbol) throw REJECT;
+    }
+    return add(name.symbol, DECLARED);
+  }
+
+  private void declareKeyword(Symbol keyword) {
+    add(keyword, USED);
+  }
+
+  private int add(Symbol symbol, byte state) {
+    if (count == variables.length) {
+      variables = Arrays.copyOf(variables, count * 2);
+      states = Arrays.copyOf(states, count * 2);
+    }
+    variables[count] = symbol;
+    states[count] = state;
+    return count++;
+  }
+
+  private void define(int variable) {
+    if (states[variable] == DECLARED) states[variable] = DEFINED;
+  }
+
+  // == Tokens ==
+
+  private boolean match(TokenType type) {
+    if (!check(type)) return false;
+    advance();
+    return true;
+  }
+
+  private Token consume(TokenType type) {
+    if (!check(type)) throw REJECT;
+    return advance();
+  }
+
+  private boolean check(TokenType type) {
+    return peek().type == type && type != EOF;
+  }
+
+  private boolean checkNext(TokenType type) {
+    if (isAtEnd()) return false;
+    return tokens.get(current + 1).type == type;
+  }
+
+  private Token advance() {
+    Token token = peek();
+    if (!isAtEnd()) current++;
+    return token;
+  }
+
+  private boolean isAtEnd() {
+    return peek().type == EOF;
+  }
+
+  private Token peek() {
+    return tokens.get(current);
+  }
+}
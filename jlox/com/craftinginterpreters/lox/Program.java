@@ -0,0 +1,88 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * A script scanned, parsed, resolved and optimized once, to be run by any
+ * number of contexts, also at the same time. Nothing changes the tree
+ * after it's built: slots of globals and what the engines learn while
+ * running (call counts, compiled code, inline caches) belong to a context,
+ * which runs a copy made by the Linker. A script with syntax errors keeps
+ * them, every context that runs it reports them.
+ *
+ * Bodies of named functions and methods can be left for their first call,
+ * see LazyFunction, most scripts only call a few of the functions they
+ * declare before they're done or print something.
+ *
+ * Made by LoxEngine.compile, run with LoxContext.run.
+ */
+public final class Program {
+  final List<Stmt> statements;
+  final List<String> errors;
+  // Nodes the Optimizer folded, simplified or removed outside lazy bodies
+  private final int rewrites;
+  // Functions whose bodies are parsed on their first call
+  final List<LazyFunction> lazy;
+
+  Program(List<Stmt> statements, List<String> errors, int rewrites) {
+    this(statements, errors, rewrites, Collections.emptyList());
+  }
+
+  Program(List<Stmt> statements, List<String> errors, int rewrites, List<LazyFunction> lazy) {
+    this.statements = statements;
+    this.errors = Collections.unmodifiableList(errors);
+    this.rewrites = rewrites;
+    this.lazy = lazy;
+  }
+
+  static Program compile(String source, boolean optimize) {
+    return compile(source, optimize, false);
+  }
+
+  static Program compile(String source, boolean optimize, boolean lazy) {
+    Reporter errors = new Reporter();
+    Scanner scanner = new Scanner(source, errors);
+    List<Token> tokens = scanner.scanTokens();
+    Parser parser = new Parser(tokens, errors, lazy);
+    List<Stmt> statements = parser.parse();
+
+    // Stop on syntax error
+    if (!errors.hadError) {
+      Resolver resolver = new Resolver(errors);
+      resolver.resolve(statements);
+    }
+
+    if (errors.hadError) {
+      return new Program(Collections.emptyList(), errors.messages, 0);
+    }
+    if (!optimize) return new Program(statements, errors.messages, 0, parser.lazyFunctions);
+
+    Optimizer optimizer = new Optimizer();
+    statements = optimizer.optimize(statements);
+    return new Program(statements, errors.messages, optimizer.rewrites, parser.lazyFunctions);
+  }
+
+  // Nodes the Optimizer rewrote, in lazy bodies once they're parsed
+  int rewrites() {
+    int count = rewrites;
+    for (LazyFunction function : lazy) {
+      count += function.rewrites();
+    }
+    return count;
+  }
+
+  // Lazy functions whose bodies were parsed so far
+  int parsed() {
+    int count = 0;
+    for (LazyFunction function : lazy) {
+      if (function.isParsed()) count++;
+    }
+    return count;
+  }
+
+  // Syntax errors as they're reported, empty if it can run
+  public List<String> errors() {
+    return errors;
+  }
+}
@@ -0,0 +1,79 @@
+package com.craftinginterpreters.lox;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Programs compiled by one engine, so a script that runs again skips
+ * scanning, parsing, resolving and optimizing. They're looked up by their
+ * source: the map hashes it and compares it in full, two scripts with the
+ * same hash don't get each other's program. When it's full the least
+ * recently used program is dropped.
+ *
+ * Every thread using the engine shares it. One lock guards the map and
+ * the counters, compiling happens outside it, so two threads that miss on
+ * the same script at once both compile it and the first one is kept.
+ */
+public final class ProgramCache {
+  private final int capacity;
+  private final Map<String, Program> programs;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  ProgramCache(int capacity) {
+    this.capacity = capacity;
+    // In access order, the eldest entry is the least recently used
+    this.programs = new LinkedHashMap<String, Program>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Program> eldest) {
+        if (size() <= ProgramCache.this.capacity) return false;
+        evictions++;
+        return true;
+      }
+    };
+  }
+
+  synchronized Program get(String source) {
+    Program program = programs.get(source);
+    if (program == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return program;
+  }
+
+  // Returns the program another thread put there meanwhile, if any
+  synchronized Program put(String source, Program program) {
+    if (capacity == 0) return program;
+    Program existing = programs.putIfAbsent(source, program);
+    return existing == null ? program : existing;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public synchronized int size() {
+    return programs.size();
+  }
+
+  public synchronized long hits() {
+    return hits;
+  }
+
+  public synchronized long misses() {
+    return misses;
+  }
+
+  public synchronized long evictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "cache: " + programs.size() + " programs, " + hits + " hits, " + misses +
+        " misses, " + evictions + " evictions";
+  }
+}
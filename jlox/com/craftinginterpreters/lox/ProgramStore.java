@@ -0,0 +1,844 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/*
+ * Programs saved in a directory, so the next process running the same
+ * script skips scanning, parsing, resolving and optimizing. A file holds
+ * the resolved tree in a compact binary form and is read back through a
+ * memory mapping.
+ *
+ * Files are named after a key made of the length and two checksums of the
+ * source, CRC32 and CRC32C. They're no defense against someone crafting
+ * a collision, a cache directory is trusted like the scripts in it, but
+ * both are native in the JVM, where a cryptographic hash of a large script
+ * would cost a cold process more than loading it. The header repeats the
+ * key and has the format VERSION, whether the tree was optimized and a
+ * CRC32 of the rest. A file that doesn't match in every point is stale or
+ * corrupt: it's ignored, the script is compiled and the file written
+ * again. Editing a script changes its key, so it never loads an old tree.
+ *
+ * Files are written under a temporary name and moved in place, a process
+ * reading at the same time sees either the old file or the new one.
+ * Saving is best effort, a directory that can't be written doesn't cache.
+ */
+final class ProgramStore {
+  // Bump when the tree, what the Resolver fills in or the format changes
+  static final int VERSION = 1;
+
+  private static final int MAGIC = 0x4c4f5843; // "LOXC"
+  private static final int KEY_SIZE = 16;
+  // Magic, version, optimized, key, rewrites, payload length, checksum
+  private static final int HEADER_SIZE = 4 + 4 + 1 + KEY_SIZE + 4 + 4 + 4;
+
+  // Node tags, statements after expressions so reading one where the
+  // other is expected fails
+  private static final int ASSIGN = 0;
+  private static final int BINARY = 1;
+  private static final int CALL = 2;
+  private static final int GET = 3;
+  private static final int GROUPING = 4;
+  private static final int LITERAL = 5;
+  private static final int LOGICAL = 6;
+  private static final int SET = 7;
+  private static final int SUPER = 8;
+  private static final int THIS = 9;
+  private static final int UNARY = 10;
+  private static final int VARIABLE = 11;
+  private static final int FUNCTION = 12;
+  private static final int BLOCK = 16;
+  private static final int CLASS = 17;
+  private static final int EXPRESSION = 18;
+  private static final int FUNCTION_STMT = 19;
+  private static final int IF = 20;
+  private static final int PRINT = 21;
+  private static final int RETURN = 22;
+  private static final int VAR = 23;
+  private static final int WHILE = 24;
+  private static final int BREAK = 25;
+  // A missing optional child: initializer, else branch, superclass...
+  private static final int NONE = 255;
+
+  // Literal values
+  private static final int NIL = 0;
+  private static final int FALSE = 1;
+  private static final int TRUE = 2;
+  private static final int NUMBER = 3;
+  private static final int STRING = 4;
+  // A number that's a whole int, written as one
+  private static final int INTEGER = 5;
+
+  private static final TokenType[] TOKEN_TYPES = TokenType.values();
+  private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+  private final Path directory;
+  private final boolean optimize;
+  private final AtomicInteger loaded = new AtomicInteger();
+  private final AtomicInteger saved = new AtomicInteger();
+  private final AtomicInteger rejected = new AtomicInteger();
+
+  ProgramStore(Path directory, boolean optimize) {
+    this.directory = directory;
+    this.optimize = optimize;
+  }
+
+  // Null for a source UTF-8 can't encode, it has unpaired surrogates that
+  // come out as '?' and it would share the key of the one with the '?'
+  static byte[] key(String source) {
+    byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+    if (!new String(bytes, StandardCharsets.UTF_8).equals(source)) return null;
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    CRC32C crcC = new CRC32C();
+    crcC.update(bytes);
+    return ByteBuffer.allocate(KEY_SIZE).putLong(bytes.length)
+        .putInt((int)crc.getValue()).putInt((int)crcC.getValue()).array();
+  }
+
+  private Path path(byte[] key) {
+    StringBuilder name = new StringBuilder();
+    for (byte b : key) {
+      name.append(Character.forDigit((b >> 4) & 0xf, 16));
+      name.append(Character.forDigit(b & 0xf, 16));
+    }
+    if (!optimize) name.append("-unoptimized");
+    return directory.resolve(name.append(".loxc").toString());
+  }
+
+  // The saved program, null if there's none or it can't be used
+  Program load(byte[] key) {
+    try (FileChannel channel = FileChannel.open(path(key), StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      Program program = read(buffer, key);
+      (program == null ? rejected : loaded).incrementAndGet();
+      return program;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | RuntimeException e) {
+      // Unreadable or a tree that doesn't decode, compiled again
+      rejected.incrementAndGet();
+      return null;
+    }
+  }
+
+  private Program read(ByteBuffer buffer, byte[] key) {
+    if (buffer.remaining() < HEADER_SIZE) return null;
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+    if (buffer.get() != (optimize ? 1 : 0)) return null;
+
+    byte[] stored = new byte[KEY_SIZE];
+    buffer.get(stored);
+    if (!Arrays.equals(stored, key)) return null;
+
+    int rewrites = buffer.getInt();
+    int length = buffer.getInt();
+    int checksum = buffer.getInt();
+    if (length != buffer.remaining()) return null;
+
+    CRC32 crc = new CRC32();
+    crc.update(buffer.duplicate());
+    if ((int)crc.getValue() != checksum) return null;
+
+    List<Stmt> statements = new Decoder(buffer).program();
+    return new Program(statements, new ArrayList<>(), rewrites);
+  }
+
+  // Programs with syntax errors aren't saved, they fail fast anyway
+  void save(byte[] key, Program program) {
+    if (!program.errors.isEmpty()) return;
+
+    try {
+      byte[] payload = new Encoder().program(program.statements);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+
+      ByteBuffer file = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+      file.putInt(MAGIC).putInt(VERSION).put((byte)(optimize ? 1 : 0)).put(key);
+      file.putInt(program.rewrites()).putInt(payload.length).putInt((int)crc.getValue());
+      file.put(payload);
+
+      Files.createDirectories(directory);
+      Path temporary = Files.createTempFile(directory, "program", ".tmp");
+      try {
+        Files.write(temporary, file.array());
+        Files.move(temporary, path(key), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        saved.incrementAndGet();
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+    } catch (IOException e) {
+      // Runs without the cache, including strings that aren't valid UTF-16
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "disk cache: " + loaded + " loaded, " + saved + " saved, " + rejected + " rejected";
+  }
+
+  /*
+   * Writes the tree in pre-order, each node as its tag and then its
+   * fields. Numbers are variable-length, small ones take one byte, and
+   * every lexeme and string is written once in a table at the start. A
+   * token's line is written as the difference to the one before, and its
+   * literal not at all: only the Parser reads it, the tree keeps names,
+   * operators and keywords.
+   */
+  private static final class Encoder implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private int line = 0;
+
+    byte[] program(List<Stmt> statements) throws CharacterCodingException {
+      writeStmts(statements);
+
+      ByteArrayOutputStream result = new ByteArrayOutputStream(out.size() * 2);
+      writeInt(result, strings.size());
+      for (String string : strings) {
+        // Reports unpaired surrogates instead of replacing them
+        ByteBuffer bytes = StandardCharsets.UTF_8.newEncoder().encode(CharBuffer.wrap(string));
+        writeInt(result, bytes.remaining());
+        result.write(bytes.array(), bytes.arrayOffset(), bytes.remaining());
+      }
+      result.write(out.toByteArray(), 0, out.size());
+      return result.toByteArray();
+    }
+
+    // Seven bits a byte, for counts, indexes and sizes
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+      while ((value & ~0x7f) != 0) {
+        out.write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    private void writeInt(int value) {
+      writeInt(out, value);
+    }
+
+    // Zigzag, so small negative numbers take one byte too
+    private void writeSigned(int value) {
+      writeInt((value << 1) ^ (value >> 31));
+    }
+
+    private void writeSignedArray(int[] values) {
+      writeInt(values.length);
+      for (int value : values) {
+        writeSigned(value);
+      }
+    }
+
+    private void writeBoolean(boolean value) {
+      out.write(value ? 1 : 0);
+    }
+
+    private int index(String string) {
+      Integer index = indexes.get(string);
+      if (index == null) {
+        index = strings.size();
+        indexes.put(string, index);
+        strings.add(string);
+      }
+      return index;
+    }
+
+    private void writeString(String string) {
+      writeInt(index(string));
+    }
+
+    private void writeValue(Object value) {
+      if (value == null) {
+        out.write(NIL);
+      } else if (value instanceof Boolean) {
+        out.write((Boolean)value ? TRUE : FALSE);
+      } else if (value instanceof Double && isInteger((Double)value)) {
+        out.write(INTEGER);
+        writeSigned((int)(double)(Double)value);
+      } else if (value instanceof Double) {
+        out.write(NUMBER);
+        long bits = Double.doubleToRawLongBits((Double)value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+          out.write((int)(bits >>> shift));
+        }
+      } else {
+        out.write(STRING);
+        writeString(value.toString());
+      }
+    }
+
+    // The type is only written when it isn't `usual` (an identifier for
+    // names, `this` for This...), the lowest bit of the lexeme says so
+    // -0 is a whole number too, but not as an int
+    private static boolean isInteger(double value) {
+      return value == (int)value && Double.doubleToRawLongBits(value) != NEGATIVE_ZERO;
+    }
+
+    private void writeToken(Token token, TokenType usual) {
+      boolean isUsual = token.type == usual;
+      writeInt(index(token.lexeme) << 1 | (isUsual ? 0 : 1));
+      if (!isUsual) out.write(token.type.ordinal());
+      writeSigned(token.line - line);
+      line = token.line;
+    }
+
+    private void writeName(Token token) {
+      writeToken(token, TokenType.IDENTIFIER);
+    }
+
+    private void writeOperator(Token token) {
+      writeToken(token, null);
+    }
+
+    private void writeExpr(Expr expr) {
+      if (expr == null) {
+        out.write(NONE);
+      } else {
+        expr.accept(this);
+      }
+    }
+
+    private void writeExprs(List<Expr> exprs) {
+      writeInt(exprs.size());
+      for (Expr expr : exprs) {
+        writeExpr(expr);
+      }
+    }
+
+    private void writeStmt(Stmt stmt) {
+      if (stmt == null) {
+        out.write(NONE);
+      } else {
+        stmt.accept(this);
+      }
+    }
+
+    private void writeStmts(List<? extends Stmt> stmts) {
+      writeInt(stmts.size());
+      for (Stmt stmt : stmts) {
+        writeStmt(stmt);
+      }
+    }
+
+    // Kind in the lowest two bits, both are -1 at least
+    private void writeLocation(int kind, int slot) {
+      writeInt((slot + 1) << 2 | (kind + 1));
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      out.write(ASSIGN);
+      writeName(expr.name);
+      writeExpr(expr.value);
+      writeLocation(expr.kind, expr.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      out.write(BINARY);
+      writeExpr(expr.left);
+      writeOperator(expr.operator);
+      writeExpr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      out.write(CALL);
+      writeExpr(expr.callee);
+      writeToken(expr.paren, TokenType.RIGHT_PAREN);
+      writeExprs(expr.arguments);
+      return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      out.write(GET);
+      writeExpr(expr.object);
+      writeName(expr.name);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      out.write(GROUPING);
+      writeExpr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      out.write(LITERAL);
+      writeValue(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      out.write(LOGICAL);
+      writeExpr(expr.left);
+      writeOperator(expr.operator);
+      writeExpr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      out.write(SET);
+      writeExpr(expr.object);
+      writeName(expr.name);
+      writeExpr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      out.write(SUPER);
+      writeToken(expr.keyword, TokenType.SUPER);
+      writeName(expr.method);
+      writeLocation(expr.kind, expr.slot);
+      writeLocation(expr.thisKind, expr.thisSlot);
+      return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      out.write(THIS);
+      writeToken(expr.keyword, TokenType.THIS);
+      writeLocation(expr.kind, expr.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      out.write(UNARY);
+      writeOperator(expr.operator);
+      writeExpr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      out.write(VARIABLE);
+      writeName(expr.name);
+      writeLocation(expr.kind, expr.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+      // A loaded program has no tokens to parse lazy bodies from, they're
+      // saved parsed. The upvalues are the declaration's.
+      Expr.Function parsed = expr.lazy != null ? expr.lazy.parse() : expr;
+      out.write(FUNCTION);
+      writeInt(expr.params.size());
+      for (Token param : expr.params) {
+        writeName(param);
+      }
+      writeStmts(parsed.body);
+      FunctionProfile profile = parsed.profile;
+      writeString(profile.name);
+      writeInt(profile.size);
+      writeBoolean(profile.hasClosures);
+      writeBoolean(profile.isRecursive);
+      writeBoolean(profile.hasLoops);
+      writeInt(parsed.slots);
+      writeSignedArray(parsed.cells);
+      writeSignedArray(expr.captures);
+      return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      out.write(BLOCK);
+      writeStmts(stmt.statements);
+      writeSigned(stmt.slots);
+      return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+      out.write(CLASS);
+      writeName(stmt.name);
+      writeExpr(stmt.superclass);
+      writeStmts(stmt.methods);
+      writeLocation(stmt.kind, stmt.slot);
+      writeSigned(stmt.superSlot);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      out.write(EXPRESSION);
+      writeExpr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      out.write(FUNCTION_STMT);
+      writeName(stmt.name);
+      writeExpr(stmt.function);
+      writeLocation(stmt.kind, stmt.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      out.write(IF);
+      writeExpr(stmt.condition);
+      writeStmt(stmt.thenBranch);
+      writeStmt(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      out.write(PRINT);
+      writeExpr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      out.write(RETURN);
+      writeToken(stmt.keyword, TokenType.RETURN);
+      writeExpr(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      out.write(VAR);
+      writeName(stmt.name);
+      writeExpr(stmt.initializer);
+      writeLocation(stmt.kind, stmt.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      out.write(WHILE);
+      writeExpr(stmt.condition);
+      writeStmt(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+      out.write(BREAK);
+      return null;
+    }
+  }
+
+  /*
+   * Reads what Encoder wrote. Anything unexpected (a bad tag, a number
+   * running past the end, bytes left over) throws, and the file is
+   * treated as corrupt.
+   */
+  private static final class Decoder {
+    private final ByteBuffer in;
+    private final String[] strings;
+    private int line = 0;
+
+    Decoder(ByteBuffer in) {
+      this.in = in;
+      strings = new String[readCount()];
+      for (int i = 0; i < strings.length; i++) {
+        byte[] bytes = new byte[readCount()];
+        in.get(bytes);
+        strings[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+    }
+
+    List<Stmt> program() {
+      List<Stmt> statements = readStmts();
+      if (in.hasRemaining()) throw new IllegalStateException("Trailing bytes.");
+      return statements;
+    }
+
+    private int readInt() {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        int b = in.get();
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) return value;
+      }
+      throw new IllegalStateException("Number too long.");
+    }
+
+    private int readSigned() {
+      int bits = readInt();
+      return (bits >>> 1) ^ -(bits & 1);
+    }
+
+    // Every element takes at least a byte, a larger count is corrupt
+    private int readCount() {
+      int count = readInt();
+      if (count < 0 || count > in.remaining()) throw new IllegalStateException("Bad count.");
+      return count;
+    }
+
+    private int[] readSignedArray() {
+      int[] values = new int[readCount()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = readSigned();
+      }
+      return values;
+    }
+
+    private static int kind(int location) {
+      return (location & 3) - 1;
+    }
+
+    private static int slot(int location) {
+      return (location >>> 2) - 1;
+    }
+
+    private boolean readBoolean() {
+      return in.get() != 0;
+    }
+
+    private String readString() {
+      return strings[readInt()];
+    }
+
+    private Object readValue() {
+      switch (in.get()) {
+        case NIL: return null;
+        case FALSE: return false;
+        case TRUE: return true;
+        case NUMBER: return Double.longBitsToDouble(in.getLong());
+        case INTEGER: return (double)readSigned();
+        case STRING: return readString();
+        default: throw new IllegalStateException("Bad value.");
+      }
+    }
+
+    private Token readToken(TokenType usual) {
+      int lexeme = readInt();
+      TokenType type = (lexeme & 1) == 0 ? usual : TOKEN_TYPES[in.get() & 0xff];
+      if (type == null) throw new IllegalStateException("Missing token type.");
+      line += readSigned();
+      return new Token(type, strings[lexeme >>> 1], null, line);
+    }
+
+    private Token readName() {
+      return readToken(TokenType.IDENTIFIER);
+    }
+
+    private Token readOperator() {
+      return readToken(null);
+    }
+
+    private List<Token> readNames() {
+      int count = readCount();
+      List<Token> names = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        names.add(readName());
+      }
+      return names;
+    }
+
+    private List<Expr> readExprs() {
+      int count = readCount();
+      List<Expr> exprs = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        exprs.add(readExpr());
+      }
+      return exprs;
+    }
+
+    private List<Stmt> readStmts() {
+      int count = readCount();
+      List<Stmt> stmts = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        stmts.add(readStmt());
+      }
+      return stmts;
+    }
+
+    private Expr readExpr() {
+      int tag = in.get() & 0xff;
+      switch (tag) {
+        case NONE:
+          return null;
+
+        case ASSIGN: {
+          Expr.Assign expr = new Expr.Assign(readName(), readExpr());
+          int location = readInt();
+          expr.kind = kind(location);
+          expr.slot = slot(location);
+          return expr;
+        }
+
+        case BINARY:
+          return new Expr.Binary(readExpr(), readOperator(), readExpr());
+
+        case CALL: {
+          Expr.Call expr = new Expr.Call(readExpr(), readToken(TokenType.RIGHT_PAREN), readExprs());
+          expr.profile = new CallProfile();
+          return expr;
+        }
+
+        case GET: {
+          Expr.Get expr = new Expr.Get(readExpr(), readName());
+          expr.cache = new PropertyCache(expr.name.symbol);
+          return expr;
+        }
+
+        case GROUPING:
+          return new Expr.Grouping(readExpr());
+
+        case LITERAL:
+          return new Expr.Literal(readValue());
+
+        case LOGICAL:
+          return new Expr.Logical(readExpr(), readOperator(), readExpr());
+
+        case SET: {
+          Expr.Set expr = new Expr.Set(readExpr(), readName(), readExpr());
+          expr.cache = new PropertyCache(expr.name.symbol);
+          return expr;
+        }
+
+        case SUPER: {
+          Expr.Super expr = new Expr.Super(readToken(TokenType.SUPER), readName());
+          int location = readInt();
+          expr.kind = kind(location);
+          expr.slot = slot(location);
+          int receiver = readInt();
+          expr.thisKind = kind(receiver);
+          expr.thisSlot = slot(receiver);
+          return expr;
+        }
+
+        case THIS: {
+          Expr.This expr = new Expr.This(readToken(TokenType.THIS));
+          int location = readInt();
+          expr.kind = kind(location);
+          expr.slot = slot(location);
+          return expr;
+        }
+
+        case UNARY:
+          return new Expr.Unary(readOperator(), readExpr());
+
+        case VARIABLE: {
+          Expr.Variable expr = new Expr.Variable(readName());
+          int location = readInt();
+          expr.kind = kind(location);
+          expr.slot = slot(location);
+          return expr;
+        }
+
+        case FUNCTION: {
+          Expr.Function expr = new Expr.Function(readNames());
+          expr.body = readStmts();
+          FunctionProfile profile = new FunctionProfile(readString());
+          profile.size = readInt();
+          profile.hasClosures = readBoolean();
+          profile.isRecursive = readBoolean();
+          profile.hasLoops = readBoolean();
+          expr.profile = profile;
+          expr.slots = readInt();
+          expr.cells = readSignedArray();
+          expr.captures = readSignedArray();
+          return expr;
+        }
+
+        default:
+          throw new IllegalStateException("Bad expression tag " + tag + ".");
+      }
+    }
+
+    private Stmt readStmt() {
+      int tag = in.get() & 0xff;
+      switch (tag) {
+        case NONE:
+          return null;
+
+        case BLOCK: {
+          Stmt.Block stmt = new Stmt.Block(readStmts());
+          stmt.slots = readSigned();
+          return stmt;
+        }
+
+        case CLASS: {
+          Token name = readName();
+          Expr.Variable superclass = (Expr.Variable)readExpr();
+          List<Stmt.Function> methods = new ArrayList<>();
+          for (Stmt method : readStmts()) {
+            methods.add((Stmt.Function)method);
+          }
+          Stmt.Class stmt = new Stmt.Class(name, superclass, methods);
+          int location = readInt();
+          stmt.kind = kind(location);
+          stmt.slot = slot(location);
+          stmt.superSlot = readSigned();
+          return stmt;
+        }
+
+        case EXPRESSION:
+          return new Stmt.Expression(readExpr());
+
+        case FUNCTION_STMT: {
+          Stmt.Function stmt = new Stmt.Function(readName(), (Expr.Function)readExpr());
+          int location = readInt();
+          stmt.kind = kind(location);
+          stmt.slot = slot(location);
+          return stmt;
+        }
+
+        case IF:
+          return new Stmt.If(readExpr(), readStmt(), readStmt());
+
+        case PRINT:
+          return new Stmt.Print(readExpr());
+
+        case RETURN:
+          return new Stmt.Return(readToken(TokenType.RETURN), readExpr());
+
+        case VAR: {
+          Stmt.Var stmt = new Stmt.Var(readName(), readExpr());
+          int location = readInt();
+          stmt.kind = kind(location);
+          stmt.slot = slot(location);
+          return stmt;
+        }
+
+        case WHILE:
+          return new Stmt.While(readExpr(), readStmt());
+
+        case BREAK:
+          return new Stmt.Break();
+
+        default:
+          throw new IllegalStateException("Bad statement tag " + tag + ".");
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * Inline cache of a property access site (a `Get` or `Set` expression or a
+ * GET/SET_PROPERTY instruction). Remembers the field slot for the last few
+ * shapes seen there, so an access is a few pointer compares instead of a
+ * hash lookup. Sites that see more shapes than that are megamorphic and
+ * look the field up in the shape every time.
+ */
+final class PropertyCache {
+  private static final int SIZE = 4;
+
+  final Symbol name;
+  private final Shape[] shapes = new Shape[SIZE];
+  private final int[] slots = new int[SIZE];
+  // Shape after a store adds the field, filled in by `transition`
+  private final Shape[] transitions = new Shape[SIZE];
+  private int count = 0;
+  // Entry of the last lookup, -1 if it wasn't cached
+  private int last = -1;
+
+  PropertyCache(Symbol name) {
+    this.name = name;
+  }
+
+  // Slot of the property in objects of `shape`, -1 if they don't have it
+  int lookup(Shape shape) {
+    for (int i = 0; i < count; i++) {
+      if (shapes[i] == shape) {
+        last = i;
+        return slots[i];
+      }
+    }
+
+    int slot = shape.indexOf(name);
+    if (count < SIZE) {
+      shapes[count] = shape;
+      slots[count] = slot;
+      last = count++;
+    } else {
+      last = -1;
+    }
+    return slot;
+  }
+
+  // Shape that adds the property to `shape`, after `lookup(shape)` missed
+  Shape transition(Shape shape) {
+    if (last == -1) return shape.with(name);
+    if (transitions[last] == null) transitions[last] = shape.with(name);
+    return transitions[last];
+  }
+}
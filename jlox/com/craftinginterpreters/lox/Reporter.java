@@ -0,0 +1,71 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Where the syntax and runtime errors of one context go, and whether there
+ * were any since the last run started. Output printed before an error is
+ * flushed first so the two come out in order.
+ *
+ * Compiling a Program happens outside any context, its Reporter keeps the
+ * messages instead and every context that runs the program reports them.
+ */
+final class Reporter {
+  private final PrintStream sink;
+  private final Output output;
+  final List<String> messages = new ArrayList<>();
+  boolean hadError = false;
+  boolean hadRuntimeError = false;
+
+  Reporter(PrintStream sink, Output output) {
+    this.sink = sink;
+    this.output = output;
+  }
+
+  // Keeps the messages
+  Reporter() {
+    this(null, null);
+  }
+
+  void error(int line, String message) {
+    report(line, "", message);
+  }
+
+  void error(Token token, String message) {
+    // We report line+1 because humans count lines starting from 1
+    int line = token.line + 1;
+    if (token.type == TokenType.EOF) {
+      report(line, " at end", message);
+    } else {
+      report(line, " at '" + token.lexeme + "'", message);
+    }
+  }
+
+  void runtimeError(RuntimeError error) {
+    output.flush();
+    sink.println(error.getMessage() + "\n[line " + error.line + "]");
+    hadRuntimeError = true;
+  }
+
+  // Syntax errors of a program compiled elsewhere
+  void report(List<String> messages) {
+    output.flush();
+    for (String message : messages) {
+      sink.println(message);
+    }
+    hadError = true;
+  }
+
+  private void report(int line, String where, String message) {
+    String text = "[line " + line + "] Error" + where + ": " + message;
+    if (sink == null) {
+      messages.add(text);
+    } else {
+      output.flush();
+      sink.println(text);
+    }
+    hadError = true;
+  }
+}
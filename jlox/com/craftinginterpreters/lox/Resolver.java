@@ -1,5 +1,6 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -11,26 +12,49 @@ import java.util.Stack;
  * It acts as a kind of "interpreter" that visits only nodes that has to do
  * with variable resolution. It has no side-effects and no control flow.
  * All branches along with function bodies are visited.
+ *
+ * It also lays out the frames. Every function call gets one frame holding
+ * all of its locals, blocks share the frame of their function. A variable
+ * used by a nested function is captured: its slot holds a Cell and the
+ * nested function gets that cell as one of its upvalues when it's created,
+ * so a closure never holds on to a whole frame. Whether a variable is
+ * captured is only known once the whole function was visited, so locations
+ * are filled in when the frame ends, see layout.
  */
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-  private enum FunctionType { NONE, FUNCTION, INITIALIZER, METHOD }
-  private enum ClassType    { NONE, CLASS, SUBCLASS }
+  // Where a resolved variable lives, the `kind` of its uses and declaration
+  static final int GLOBAL = -1;
+  // Slot in the current frame
+  static final int LOCAL = 0;
+  // Slot in the current frame holding the variable's Cell
+  static final int CELL = 1;
+  // Index into the upvalues of the current frame
+  static final int UPVALUE = 2;
+
+  // Also what a LazyFunction remembers about where it was declared
+  enum FunctionType { NONE, FUNCTION, INITIALIZER, METHOD }
+  enum ClassType    { NONE, CLASS, SUBCLASS }
 
   private class Variable {
     enum State { DECLARED, DEFINED, USED }
     private State state = State.DECLARED;
     private final Token name;
-    final int slot;
-
-    Variable(Token name, int slot) {
+    final Scope scope;
+    int slot = -1;
+    // Set when it's used from a function nested in the one declaring it
+    boolean isCaptured = false;
+    // Uses in its own frame, closures created there take its cell from it too
+    final List<Location> references = new ArrayList<>();
+
+    Variable(Token name, Scope scope) {
       this.name = name;
-      this.slot = slot;
+      this.scope = scope;
     }
 
-    Variable(Token name, State state, int slot) {
+    Variable(Token name, State state, Scope scope) {
       this.name = name;
       this.state = state;
-      this.slot = slot;
+      this.scope = scope;
     }
 
     public void setDefined() {
@@ -42,14 +66,47 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
   }
 
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Variable>> scopes = new Stack<>();
+  // Receives the location of a variable once its frame is laid out
+  private interface Location {
+    void resolve(int kind, int slot);
+  }
+
+  private class Scope {
+    final Scope enclosing;
+    // Function bodies and scopes at the top level are frames, the scopes
+    // inside them are laid out in their frame
+    final Scope frame;
+    final Map<Symbol, Variable> variables = new HashMap<>();
+    // In declaration order, they get slots in that order
+    final List<Variable> declared = new ArrayList<>();
+    // Scopes laid out in this frame in the order they begin, starting with
+    // the frame itself
+    final List<Scope> members = new ArrayList<>();
+    // Variables of enclosing frames used in this frame, in upvalue order
+    final List<Variable> upvalues = new ArrayList<>();
+    // Set for blocks, to store how big their frame is
+    Stmt.Block block;
+    int size = 0;
+
+    Scope(Scope enclosing, boolean isFrame) {
+      this.enclosing = enclosing;
+      this.frame = isFrame ? this : enclosing.frame;
+    }
+  }
+
+  private final Stack<Scope> scopes = new Stack<>();
+  private final Reporter errors;
 
   private FunctionType currentFunction = FunctionType.NONE;
+  private FunctionProfile currentProfile = null;
+  // Nodes resolved so far, to measure function bodies
+  private int nodes = 0;
   private ClassType currentClass = ClassType.NONE;
+  // Stand-ins for the upvalues of the lazy function resolveLazy resolves
+  private List<Variable> lazyUpvalues = null;
 
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
+  Resolver(Reporter errors) {
+    this.errors = errors;
   }
 
   void resolve(List<Stmt> statements) {
@@ -59,16 +116,20 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   }
 
   private void resolve(Stmt stmt) {
+    nodes++;
     stmt.accept(this);
   }
 
   private void resolve(Expr expr) {
+    nodes++;
     expr.accept(this);
   }
 
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
-    beginScope();
+    // Blocks at the top level are frames for the blocks inside them
+    Scope scope = beginScope(scopes.isEmpty());
+    scope.block = stmt;
     resolve(stmt.statements);
     endScope();
     return null;
@@ -78,12 +139,17 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitClassStmt(Stmt.Class stmt) {
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
+    if (currentProfile != null) currentProfile.hasClosures = true;
 
     declare(stmt.name);
     define(stmt.name);
+    resolveLocal(stmt.name, false, (kind, slot) -> {
+      stmt.kind = kind;
+      stmt.slot = slot;
+    });
 
-    if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-      Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
+    if (stmt.superclass != null && stmt.name.symbol == stmt.superclass.name.symbol) {
+      errors.error(stmt.superclass.name, "A class can't inherit from itself.");
     }
 
     if (stmt.superclass != null) {
@@ -91,26 +157,23 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       resolve(stmt.superclass);
     }
 
+    // `super` is a variable of the enclosing frame, at the top level it
+    // gets one of its own
     if (stmt.superclass != null) {
-      beginScope();
-      Map<String, Variable> scope = scopes.peek();
-      scope.put("super", new Variable(stmt.superclass.name, Variable.State.USED, scope.size()));
+      beginScope(scopes.isEmpty());
+      declareKeyword(Symbol.SUPER, stmt.superclass.name).references
+          .add((kind, slot) -> stmt.superSlot = slot);
     }
 
-    beginScope();
-    Map<String, Variable> scope = scopes.peek();
-    scope.put("this", new Variable(stmt.name, Variable.State.USED, scope.size()));
-
     for (Stmt.Function method : stmt.methods) {
       FunctionType declaration = FunctionType.METHOD;
-      if (method.name.lexeme.equals("init")) {
+      if (method.name.symbol == Symbol.INIT) {
         declaration = FunctionType.INITIALIZER;
       }
-      resolveFunction(method.function, declaration);
+      resolveFunction(stmt.name.lexeme + "." + method.name.lexeme, method.function, declaration,
+          stmt.name);
     }
 
-    endScope();
-
     if (stmt.superclass != null) endScope();
 
     currentClass = enclosingClass;
@@ -129,7 +192,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     declare(stmt.name);
     // We define function right away so it would be available in it's own inner scope
     define(stmt.name);
-    resolveFunction(stmt.function, FunctionType.FUNCTION);
+    resolveLocal(stmt.name, false, (kind, slot) -> {
+      stmt.kind = kind;
+      stmt.slot = slot;
+    });
+    resolveFunction(stmt.name.lexeme, stmt.function, FunctionType.FUNCTION, null);
     return null;
   }
 
@@ -150,12 +217,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
     if (currentFunction == FunctionType.NONE) {
-      Lox.error(stmt.keyword, "'return' is only allowed inside function body");
+      errors.error(stmt.keyword, "'return' is only allowed inside function body");
     }
 
     // Returning from constructor is not allowed
     if (currentFunction == FunctionType.INITIALIZER) {
-      Lox.error(stmt.keyword, "Can't 'return' a value from an initializer");
+      errors.error(stmt.keyword, "Can't 'return' a value from an initializer");
     }
 
     if (stmt.value != null) {
@@ -178,11 +245,16 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       resolve(stmt.initializer);
     }
     define(stmt.name);
+    resolveLocal(stmt.name, false, (kind, slot) -> {
+      stmt.kind = kind;
+      stmt.slot = slot;
+    });
     return null;
   }
 
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
+    if (currentProfile != null) currentProfile.hasLoops = true;
     resolve(stmt.condition);
     resolve(stmt.body);
     return null;
@@ -191,13 +263,16 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name, false);;
+    resolveLocal(expr.name, false, (kind, slot) -> {
+      expr.kind = kind;
+      expr.slot = slot;
+    });
     return null;
   }
 
   @Override
   public Void visitFunctionExpr(Expr.Function expr) {
-    resolveFunction(expr, FunctionType.FUNCTION);
+    resolveFunction("<fn>", expr, FunctionType.FUNCTION, null);
     return null;
   }
 
@@ -211,6 +286,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitCallExpr(Expr.Call expr) {
     resolve(expr.callee);
+    expr.profile = new CallProfile();
+
+    if (currentProfile != null && expr.callee instanceof Expr.Variable &&
+        ((Expr.Variable)expr.callee).name.lexeme.equals(currentProfile.name)) {
+      currentProfile.isRecursive = true;
+    }
 
     for (Expr argument : expr.arguments) {
       resolve(argument);
@@ -223,6 +304,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitGetExpr(Expr.Get expr) {
     // We only recurse into the expr to the left of the `.` since properties are dynamic and looked up in interpreter
     resolve(expr.object);
+    expr.cache = new PropertyCache(expr.name.symbol);
     return null;
   }
 
@@ -248,27 +330,39 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitSetExpr(Expr.Set expr) {
     resolve(expr.value);
     resolve(expr.object);
+    expr.cache = new PropertyCache(expr.name.symbol);
     return null;
   }
 
   @Override
   public Void visitSuperExpr(Expr.Super expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword, "Can't use 'super' outside of a class.");
+      errors.error(expr.keyword, "Can't use 'super' outside of a class.");
     } else if (currentClass != ClassType.SUBCLASS) {
-      Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+      errors.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
     }
-    resolveLocal(expr, expr.keyword, true);
+    resolveLocal(Symbol.SUPER, true, (kind, slot) -> {
+      expr.kind = kind;
+      expr.slot = slot;
+    });
+    // The receiver the method is bound to
+    resolveLocal(Symbol.THIS, true, (kind, slot) -> {
+      expr.thisKind = kind;
+      expr.thisSlot = slot;
+    });
     return null;
   }
 
   @Override
   public Void visitThisExpr(Expr.This expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
+      errors.error(expr.keyword, "Can't use 'this' outside of a class.");
       return null;
     }
-    resolveLocal(expr, expr.keyword, true);
+    resolveLocal(expr.keyword, true, (kind, slot) -> {
+      expr.kind = kind;
+      expr.slot = slot;
+    });
     return null;
   }
 
@@ -282,73 +376,244 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitVariableExpr(Expr.Variable expr) {
     // Here we prohibit using a variable in it's own initializer by checking if it is only declared but not yet initialized
     if (!scopes.isEmpty() &&
-        scopes.peek().containsKey(expr.name.lexeme) &&
-        scopes.peek().get(expr.name.lexeme).state == Variable.State.DECLARED) {
-      Lox.error(expr.name, "Can't read local variable in its own initializer");
+        scopes.peek().variables.containsKey(expr.name.symbol) &&
+        scopes.peek().variables.get(expr.name.symbol).state == Variable.State.DECLARED) {
+      errors.error(expr.name, "Can't read local variable in its own initializer");
     }
 
-    resolveLocal(expr, expr.name, true);
+    resolveLocal(expr.name, true, (kind, slot) -> {
+      expr.kind = kind;
+      expr.slot = slot;
+    });
     return null;
   }
 
-  private void beginScope() {
-    scopes.push(new HashMap<String, Variable>());
+  private Scope beginScope(boolean isFrame) {
+    Scope scope = new Scope(scopes.isEmpty() ? null : scopes.peek(), isFrame);
+    scope.frame.members.add(scope);
+    scopes.push(scope);
+    return scope;
   }
 
   private void endScope() {
-    Map<String, Variable> scope = scopes.pop();
-
-    // We check for unused variables and report them as errors
-    for (Map.Entry<String, Variable> entry : scope.entrySet()) {
-      Variable scopeVariable = entry.getValue();
-      if (scopeVariable.state != Variable.State.USED) {
-        Lox.error(scopeVariable.name, "Unused variable '" + entry.getKey() + "'.");
+    Scope scope = scopes.pop();
+
+    // We check for unused variables and report them as errors, in the
+    // order they were declared. A redeclaration already is one.
+    for (Variable scopeVariable : scope.declared) {
+      if (scopeVariable.state != Variable.State.USED &&
+          scope.variables.get(scopeVariable.name.symbol) == scopeVariable) {
+        errors.error(scopeVariable.name, "Unused variable '" + scopeVariable.name.lexeme + "'.");
       }
     }
+
+    if (scope.frame == scope) layout(scope);
   }
 
   private void declare(Token name) {
     if (scopes.isEmpty()) return;
 
-    Map<String, Variable> scope = scopes.peek();
-    if (scope.containsKey(name.lexeme)) {
-      Lox.error(name, "Variable already exists");
+    Scope scope = scopes.peek();
+    if (scope.variables.containsKey(name.symbol)) {
+      errors.error(name, "Variable already exists");
     }
 
-    scope.put(name.lexeme, new Variable(name, scope.size()));
+    Variable variable = new Variable(name, scope);
+    scope.variables.put(name.symbol, variable);
+    scope.declared.add(variable);
+  }
+
+  // `this` and `super` are never unused
+  private Variable declareKeyword(Symbol keyword, Token token) {
+    Scope scope = scopes.peek();
+    Variable variable = new Variable(token, Variable.State.USED, scope);
+    scope.variables.put(keyword, variable);
+    scope.declared.add(variable);
+    return variable;
   }
 
   private void define(Token name) {
     if (scopes.isEmpty()) return;
-    scopes.peek().get(name.lexeme).setDefined();
+    scopes.peek().variables.get(name.symbol).setDefined();
   }
 
-  private void resolveLocal(Expr expr, Token name, boolean isRead) {
+  private void resolveLocal(Token name, boolean isRead, Location location) {
+    resolveLocal(name.symbol, isRead, location);
+  }
+
+  /*
+   * Finds the variable `symbol` refers to. A variable of another frame is
+   * an upvalue of the current one, its index is known right away. One of
+   * the current frame gets its slot and whether it's captured once the
+   * frame is laid out. If it wasn't found it has to be a global, then it
+   * gets GLOBAL and the Linker gives it the slot of the context the program
+   * runs in.
+   */
+  private void resolveLocal(Symbol symbol, boolean isRead, Location location) {
     // We go down the stack and try to resolve variable in the nearest scope
     for (int i = scopes.size()-1; i >= 0; i--) {
-      Map<String, Variable> scope = scopes.get(i);
-      if (scope.containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size()-1-i, scope.get(name.lexeme).slot);
-
+      Variable variable = scopes.get(i).variables.get(symbol);
+      if (variable != null) {
         // We mark function as used upon resolution to report unused errors later but only when it is beaing read
         if (isRead) {
-          scope.get(name.lexeme).setUsed();
+          variable.setUsed();
+        }
+        Scope frame = scopes.peek().frame;
+        if (variable.scope.frame == frame) {
+          variable.references.add(location);
+        } else {
+          variable.isCaptured = true;
+          location.resolve(UPVALUE, upvalue(frame, variable));
         }
         return;
       }
     }
+
+    location.resolve(GLOBAL, -1);
+  }
+
+  // Adds `variable` to the upvalues of `frame` and the frames between it
+  // and the variable's, unless it's there already
+  private int upvalue(Scope frame, Variable variable) {
+    int index = frame.upvalues.indexOf(variable);
+    if (index != -1) return index;
+
+    frame.upvalues.add(variable);
+    Scope enclosing = frame.enclosing.frame;
+    if (enclosing != variable.scope.frame) upvalue(enclosing, variable);
+    return frame.upvalues.size() - 1;
   }
 
-  private void resolveFunction(Expr.Function function, FunctionType type) {
+  /*
+   * Gives the variables of a frame and its blocks their slots, then
+   * tells every use in the frame where to find them. Nested frames were
+   * visited already, so which variables they captured is known.
+   */
+  private void layout(Scope frame) {
+    for (Scope scope : frame.members) {
+      for (Variable variable : scope.declared) {
+        variable.slot = frame.size++;
+      }
+    }
+
+    for (Scope scope : frame.members) {
+      if (scope.block != null) {
+        scope.block.slots = scope == frame ? frame.size : -1;
+      }
+      for (Variable variable : scope.declared) {
+        int kind = variable.isCaptured ? CELL : LOCAL;
+        for (Location location : variable.references) {
+          location.resolve(kind, variable.slot);
+        }
+      }
+    }
+  }
+
+  // `className` is set for methods, their receiver `this` takes the first slot
+  private void resolveFunction(String name, Expr.Function function, FunctionType type, Token className) {
+    if (currentProfile != null) currentProfile.hasClosures = true;
+    if (function.lazy != null) {
+      resolveUpvalues(name, function);
+      return;
+    }
+
+    FunctionProfile enclosingProfile = currentProfile;
+    currentProfile = function.profile = new FunctionProfile(name);
+    int start = nodes;
     FunctionType enclosingFunction = currentFunction;
     currentFunction = type;
-    beginScope();
+    Scope scope = beginScope(true);
+    if (lazyUpvalues != null) {
+      scope.upvalues.addAll(lazyUpvalues);
+      lazyUpvalues = null;
+    }
+    if (className != null) {
+      declareKeyword(Symbol.THIS, className);
+    }
     for (Token param : function.params) {
       declare(param);
       define(param);
     }
     resolve(function.body);
     endScope();
+    function.slots = scope.size;
+    // The receiver and parameters are declared first
+    captures(function, scope, function.params.size() + (className != null ? 1 : 0));
+    currentProfile.size = nodes - start;
     currentFunction = enclosingFunction;
+    currentProfile = enclosingProfile;
+  }
+
+  /*
+   * A lazy function only has the names its body uses without declaring
+   * them, see PreParser. Those found in the functions around it become its
+   * upvalues now, in the order they're listed, the body is resolved when
+   * it's first called.
+   */
+  private void resolveUpvalues(String name, Expr.Function function) {
+    LazyFunction lazy = function.lazy;
+    function.profile = new FunctionProfile(name);
+    lazy.name = name;
+
+    Scope scope = beginScope(true);
+    List<Symbol> upvalues = new ArrayList<>();
+    for (int i = 0; i < lazy.names.length; i++) {
+      Symbol symbol = lazy.names[i];
+      resolveLocal(symbol, lazy.reads[i], (kind, slot) -> {
+        if (kind == UPVALUE) upvalues.add(symbol);
+      });
+    }
+    endScope();
+    lazy.upvalues = upvalues.toArray(new Symbol[0]);
+    captures(function, scope, 0);
+  }
+
+  /*
+   * Resolves the body of a lazy function on its first call, as if it was
+   * resolved with the script. The variables it uses from the functions
+   * around it are stand-ins in a frame of their own, they're its upvalues
+   * in the same order as before.
+   */
+  void resolveLazy(Expr.Function function, LazyFunction lazy) {
+    currentClass = lazy.classType;
+    Scope outer = beginScope(true);
+    lazyUpvalues = new ArrayList<>();
+    for (Symbol symbol : lazy.upvalues) {
+      Variable variable = new Variable(null, Variable.State.USED, outer);
+      outer.variables.put(symbol, variable);
+      lazyUpvalues.add(variable);
+    }
+
+    resolveFunction(lazy.name, function, lazy.type, lazy.className);
+    // Where the upvalues come from is only known to the declaration in the
+    // script
+    function.captures = null;
+    scopes.pop();
+  }
+
+  /*
+   * The receiver and parameters are in the frame before the body runs, the
+   * captured ones get boxed on entry. Upvalues are taken from the frame the
+   * function is created in, whose slots are only known once it's laid out.
+   */
+  private void captures(Expr.Function function, Scope scope, int parameters) {
+    List<Integer> cells = new ArrayList<>();
+    for (Variable variable : scope.declared.subList(0, parameters)) {
+      if (variable.isCaptured) cells.add(variable.slot);
+    }
+    function.cells = cells.stream().mapToInt(Integer::intValue).toArray();
+
+    int[] captures = new int[scope.upvalues.size()];
+    function.captures = captures;
+    for (int i = 0; i < captures.length; i++) {
+      Variable variable = scope.upvalues.get(i);
+      Scope enclosing = scope.enclosing.frame;
+      if (variable.scope.frame == enclosing) {
+        int index = i;
+        variable.references.add((kind, slot) -> captures[index] = slot);
+      } else {
+        captures[i] = -1 - enclosing.upvalues.indexOf(variable);
+      }
+    }
   }
 }
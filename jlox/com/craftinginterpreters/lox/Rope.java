@@ -0,0 +1,132 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/*
+ * Lox string that isn't a plain String. It's either a concatenation whose
+ * halves are only copied into one String the first time its characters
+ * are needed, or a slice that shares the characters of another string.
+ * Building a string piece by piece with `+` is then linear instead of
+ * copying everything so far on every step.
+ *
+ * Strings and ropes are both CharSequences, that's how the engines tell a
+ * Lox string from other values. Short results are still plain Strings,
+ * copying them is cheaper than keeping the pieces around.
+ */
+final class Rope implements CharSequence {
+  // Shorter concatenations and slices are copied right away
+  private static final int MIN_LENGTH = 64;
+
+  // Halves of a concatenation, null once it's flattened and for slices
+  private CharSequence left;
+  private CharSequence right;
+  // Characters of a flattened rope or the string a slice points into
+  private String text;
+  private final int offset;
+  private final int length;
+
+  private Rope(CharSequence left, CharSequence right) {
+    this.left = left;
+    this.right = right;
+    this.offset = 0;
+    this.length = left.length() + right.length();
+  }
+
+  private Rope(String text, int offset, int length) {
+    this.text = text;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  static CharSequence concat(CharSequence left, CharSequence right) {
+    if (left.length() == 0) return right;
+    if (right.length() == 0) return left;
+    if (left.length() + right.length() < MIN_LENGTH) {
+      return left.toString().concat(right.toString());
+    }
+    return new Rope(left, right);
+  }
+
+  // `value` as a string for `+`, strings and ropes stay as they are
+  static CharSequence text(Object value) {
+    if (value instanceof CharSequence) return (CharSequence)value;
+    return Interpreter.stringify(value);
+  }
+
+  // Characters from `start` up to `end` of `string`, without copying them
+  static CharSequence slice(CharSequence string, int start, int end) {
+    if (end - start < MIN_LENGTH) return string.subSequence(start, end).toString();
+    if (string instanceof Rope) {
+      Rope rope = (Rope)string;
+      rope.flatten();
+      return new Rope(rope.text, rope.offset + start, end - start);
+    }
+    return new Rope((String)string, start, end - start);
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    flatten();
+    return text.charAt(offset + index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return slice(this, start, end);
+  }
+
+  @Override
+  public String toString() {
+    flatten();
+    if (offset == 0 && length == text.length()) return text;
+    return text.substring(offset, offset + length);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof CharSequence)) return false;
+    CharSequence string = (CharSequence)other;
+    return length == string.length() && toString().equals(string.toString());
+  }
+
+  @Override
+  public int hashCode() {
+    return toString().hashCode();
+  }
+
+  /*
+   * Copies the pieces into one String and drops them. Ropes built in a
+   * loop are as deep as the loop was long, so this walks them with an
+   * explicit stack instead of recursing.
+   */
+  private void flatten() {
+    if (left == null) return;
+
+    StringBuilder builder = new StringBuilder(length);
+    Deque<CharSequence> pending = new ArrayDeque<>();
+    pending.push(this);
+    while (!pending.isEmpty()) {
+      CharSequence next = pending.pop();
+      if (next instanceof Rope && ((Rope)next).left != null) {
+        Rope rope = (Rope)next;
+        pending.push(rope.right);
+        pending.push(rope.left);
+      } else if (next instanceof Rope) {
+        Rope rope = (Rope)next;
+        builder.append(rope.text, rope.offset, rope.offset + rope.length);
+      } else {
+        builder.append(next);
+      }
+    }
+
+    text = builder.toString();
+    left = null;
+    right = null;
+  }
+}
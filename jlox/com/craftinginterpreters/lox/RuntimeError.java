@@ -1,10 +1,20 @@
 package com.craftinginterpreters.lox;
 
-class RuntimeError extends RuntimeException {
+// Lox runtime error, LoxContext.call throws it to the host
+public class RuntimeError extends RuntimeException {
   final Token token;
+  final int line;
 
   RuntimeError(Token token, String message) {
     super(message);
     this.token = token;
+    this.line = token.line;
+  }
+
+  // The VM only knows the line from its chunk's line table
+  RuntimeError(int line, String message) {
+    super(message);
+    this.token = null;
+    this.line = line;
   }
 }
@@ -10,6 +10,7 @@ import static com.craftinginterpreters.lox.TokenType.*;
 class Scanner {
   private final String source;
   private final List<Token> tokens = new ArrayList<>();
+  private final Reporter errors;
   private static final Map<String, TokenType> keywords;
 
   static {
@@ -37,8 +38,9 @@ class Scanner {
   private int current = 0;
   private int line = 0;
 
-  Scanner(String source) {
+  Scanner(String source, Reporter errors) {
     this.source = source;
+    this.errors = errors;
   }
 
   List<Token> scanTokens() {
@@ -150,7 +152,7 @@ class Scanner {
       } else if (isAlpha(c)) {
         identifier();
       } else {
-        Lox.error(line, "Unexpected character.");
+        errors.error(line, "Unexpected character.");
       }
       break;
     }
@@ -198,7 +200,7 @@ class Scanner {
     }
 
     if (isAtEnd()) {
-      Lox.error(line, "Unterminated string.");
+      errors.error(line, "Unterminated string.");
       return;
     }
 
@@ -0,0 +1,49 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Layout of an instance: which slot of its field array holds each field.
+ * Every class has a root shape without fields, adding a field moves an
+ * instance to the next shape through a transition that is created once and
+ * shared, so instances that get the same fields in the same order (usually
+ * in `init`) share one shape.
+ */
+final class Shape {
+  final Shape root;
+  final int size;
+  private final Map<Symbol, Integer> slots;
+  private final Map<Symbol, Shape> transitions = new HashMap<>();
+  // Largest number of fields any instance ended up with, used to size the
+  // field arrays of new instances so they don't have to grow
+  int instanceSize = 0;
+
+  Shape() {
+    root = this;
+    size = 0;
+    slots = new HashMap<>();
+  }
+
+  private Shape(Shape parent, Symbol name) {
+    root = parent.root;
+    size = parent.size + 1;
+    slots = new HashMap<>(parent.slots);
+    slots.put(name, parent.size);
+  }
+
+  // Slot of the field, -1 if instances of this shape don't have it
+  int indexOf(Symbol name) {
+    Integer slot = slots.get(name);
+    return slot == null ? -1 : slot;
+  }
+
+  Shape with(Symbol name) {
+    Shape next = transitions.get(name);
+    if (next == null) {
+      next = new Shape(this, name);
+      transitions.put(name, next);
+    }
+    return next;
+  }
+}
@@ -0,0 +1,26 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * What the operator nodes of the `nodes` engine specialized themselves on.
+ * Sites that deoptimized saw operands of more than one type, `--node-stats`
+ * lists them.
+ */
+final class Specializations {
+  int specialized = 0;
+  final List<String> deoptimized = new ArrayList<>();
+
+  void deoptimize(Token operator, String from) {
+    // Lines count from 1 here, like in syntax errors
+    deoptimized.add("'" + operator.lexeme + "' at line " + (operator.line + 1) + ": " + from +
+        " -> generic");
+  }
+
+  @Override
+  public String toString() {
+    return "nodes: " + specialized + " sites specialized, " + deoptimized.size() +
+        " deoptimized";
+  }
+}
@@ -26,6 +26,8 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+
+    int slots = -1;
   }
 
   static class Class extends Stmt {
@@ -43,6 +45,10 @@ abstract class Stmt {
     final Token name;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
+
+    int kind = -1;
+    int slot = -1;
+    int superSlot = -1;
   }
 
   static class Expression extends Stmt {
@@ -71,6 +77,9 @@ abstract class Stmt {
 
     final Token name;
     final Expr.Function function;
+
+    int kind = -1;
+    int slot = -1;
   }
 
   static class If extends Stmt {
@@ -131,6 +140,9 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    int kind = -1;
+    int slot = -1;
   }
 
   static class While extends Stmt {
@@ -0,0 +1,53 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Interned name. Every identifier the Scanner reads becomes the one Symbol
+ * for its name, so the maps keyed by names (Resolver scopes, globals,
+ * class methods, instance shapes) hash a precomputed id and compare
+ * identity instead of hashing and comparing characters, and a program that
+ * uses a name a thousand times keeps one copy of it.
+ *
+ * The table is shared by every interpreter in the process and symbols are
+ * never removed from it.
+ */
+final class Symbol {
+  private static final ConcurrentHashMap<String, Symbol> table = new ConcurrentHashMap<>();
+  private static final AtomicInteger nextId = new AtomicInteger();
+
+  static final Symbol INIT = of("init");
+  static final Symbol THIS = of("this");
+  static final Symbol SUPER = of("super");
+
+  final String name;
+  final int id;
+
+  private Symbol(String name, int id) {
+    this.name = name;
+    this.id = id;
+  }
+
+  static Symbol of(String name) {
+    Symbol symbol = table.get(name);
+    if (symbol != null) return symbol;
+    return table.computeIfAbsent(name, key -> new Symbol(key, nextId.getAndIncrement()));
+  }
+
+  // The symbol if the name has one, null instead of adding it to the table
+  static Symbol find(String name) {
+    return table.get(name);
+  }
+
+  // Equal symbols are the same object, so only the hash needs changing
+  @Override
+  public int hashCode() {
+    return id;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -3,12 +3,16 @@ package com.craftinginterpreters.lox;
 class Token {
   final TokenType type;
   final String lexeme;
+  // Interned lexeme of identifiers, `this` and `super`, null otherwise
+  final Symbol symbol;
   final Object literal;
   final int line;
 
   Token(TokenType type, String lexeme, Object literal, int line) {
     this.type = type;
-    this.lexeme = lexeme;
+    this.symbol = type == TokenType.IDENTIFIER || type == TokenType.THIS ||
+        type == TokenType.SUPER ? Symbol.of(lexeme) : null;
+    this.lexeme = symbol == null ? lexeme : symbol.name;
     this.literal = literal;
     this.line = line;
   }
@@ -0,0 +1,774 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+/*
+ * Stack based virtual machine that runs functions compiled by
+ * BytecodeCompiler. All values live on a single `Object[]` stack, every call
+ * gets a CallFrame that points at its window of that stack, and variables
+ * captured by closures are moved into upvalues when they go out of scope.
+ * Lox calls don't nest Java calls, so recursion is only limited by memory
+ * and `Interpreter.maxDepth`, and tail calls don't grow the stack at all.
+ *
+ * It shares globals and native functions with the Interpreter so both
+ * engines see the same `clock` and the REPL keeps its state between lines.
+ */
+class VM {
+  // == Runtime objects ==
+
+  static final class ObjFunction {
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+    // Set until the chunk of a lazy function is compiled, see LazyFunction
+    BytecodeCompiler.LazyBody lazy = null;
+
+    ObjFunction(String name, int arity) {
+      this.name = name;
+      this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+      if (name == null) return "<fn>";
+      return "<fn " + name + ">";
+    }
+  }
+
+  static final class ObjClosure {
+    final ObjFunction function;
+    final ObjUpvalue[] upvalues;
+
+    ObjClosure(ObjFunction function) {
+      this.function = function;
+      this.upvalues = new ObjUpvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+      return function.toString();
+    }
+  }
+
+  // Variable captured by a closure. While the variable is still on the stack
+  // the upvalue points at its slot, once it goes away it holds the value.
+  static final class ObjUpvalue {
+    int slot;
+    boolean isOpen = true;
+    Object closed;
+    ObjUpvalue next;
+
+    ObjUpvalue(int slot, ObjUpvalue next) {
+      this.slot = slot;
+      this.next = next;
+    }
+  }
+
+  static final class ObjClass {
+    final String name;
+    final Map<Symbol, ObjClosure> methods = new HashMap<>();
+    final Shape shape = new Shape();
+    // Cached "init" from `methods`, kept up to date by INHERIT and METHOD
+    ObjClosure initializer;
+
+    ObjClass(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  static final class ObjInstance extends DynamicObject {
+    final ObjClass klass;
+
+    ObjInstance(ObjClass klass) {
+      super(klass.shape);
+      this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+      return klass.name + " instance";
+    }
+  }
+
+  static final class ObjBoundMethod {
+    final Object receiver;
+    final ObjClosure method;
+
+    ObjBoundMethod(Object receiver, ObjClosure method) {
+      this.receiver = receiver;
+      this.method = method;
+    }
+
+    @Override
+    public String toString() {
+      return method.toString();
+    }
+  }
+
+  private static final class CallFrame {
+    ObjClosure closure;
+    int ip;
+    // Stack index of slot 0 of this frame
+    int base;
+  }
+
+  // == VM state ==
+
+  private final Interpreter interpreter;
+  private final Globals globals;
+  private Object[] stack = new Object[256];
+  private int sp = 0;
+  private CallFrame[] frames = new CallFrame[64];
+  private int frameCount = 0;
+  private ObjUpvalue openUpvalues = null;
+
+  VM(Interpreter interpreter) {
+    this.interpreter = interpreter;
+    this.globals = interpreter.globals;
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = new CallFrame();
+    }
+  }
+
+  void interpret(ObjFunction script) {
+    try {
+      ObjClosure closure = new ObjClosure(script);
+      push(closure);
+      call(closure, 0, 0);
+      run();
+    } catch (RuntimeError error) {
+      resetStack();
+      interpreter.errors.runtimeError(error);
+    }
+  }
+
+  /*
+   * Calls a function, bound method or class of a script that ran already,
+   * for the host. Runtime errors are thrown to the caller.
+   */
+  Object call(Object callee, Object[] arguments) {
+    Object receiver = callee;
+    ObjClosure closure;
+    if (callee instanceof ObjClosure) {
+      closure = (ObjClosure)callee;
+    } else if (callee instanceof ObjBoundMethod) {
+      receiver = ((ObjBoundMethod)callee).receiver;
+      closure = ((ObjBoundMethod)callee).method;
+    } else if (callee instanceof ObjClass) {
+      receiver = new ObjInstance((ObjClass)callee);
+      closure = ((ObjClass)callee).initializer;
+      if (closure == null && arguments.length == 0) return receiver;
+      if (closure == null) {
+        throw new RuntimeError(0, "Expected 0 arguments but got " + arguments.length + ".");
+      }
+    } else if (callee instanceof LoxCallable) {
+      return interpreter.call((LoxCallable)callee, arguments);
+    } else {
+      throw new RuntimeError(0, "Only functions and classes are callable.");
+    }
+
+    try {
+      push(receiver);
+      for (Object argument : arguments) push(argument);
+      call(closure, arguments.length, 0);
+      return run();
+    } catch (RuntimeError error) {
+      resetStack();
+      throw error;
+    }
+  }
+
+  private void resetStack() {
+    Arrays.fill(stack, 0, sp, null);
+    sp = 0;
+    frameCount = 0;
+    openUpvalues = null;
+  }
+
+  private void push(Object value) {
+    if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+    stack[sp++] = value;
+  }
+
+  private Object pop() {
+    Object value = stack[--sp];
+    stack[sp] = null;
+    return value;
+  }
+
+  private Object peek(int distance) {
+    return stack[sp - 1 - distance];
+  }
+
+  // Runs until the outermost frame returns, with its result
+  private Object run() {
+    CallFrame frame = frames[frameCount - 1];
+    int[] code = frame.closure.function.chunk.code;
+    Object[] constants = frame.closure.function.chunk.constants;
+    int ip = frame.ip;
+    int base = frame.base;
+
+    for (;;) {
+      int start = ip;
+      switch (code[ip++]) {
+        case CONSTANT:
+          push(constants[code[ip++]]);
+          break;
+        case NIL:
+          push(null);
+          break;
+        case TRUE:
+          push(true);
+          break;
+        case FALSE:
+          push(false);
+          break;
+        case POP:
+          pop();
+          break;
+        case GET_LOCAL:
+          push(stack[base + code[ip++]]);
+          break;
+        case SET_LOCAL:
+          stack[base + code[ip++]] = peek(0);
+          break;
+        case GET_GLOBAL: {
+          int slot = code[ip++];
+          if (!globals.isDefined(slot)) {
+            throw error(frame, start, "Undefined variable '" + globals.name(slot) + "'.");
+          }
+          push(globals.value(slot));
+          break;
+        }
+        case DEFINE_GLOBAL:
+          globals.define(code[ip++], pop());
+          break;
+        case SET_GLOBAL: {
+          int slot = code[ip++];
+          if (!globals.isDefined(slot)) {
+            throw error(frame, start, "Undefined variable '" + globals.name(slot) + "'.");
+          }
+          globals.define(slot, peek(0));
+          break;
+        }
+        case GET_UPVALUE: {
+          ObjUpvalue upvalue = frame.closure.upvalues[code[ip++]];
+          push(upvalue.isOpen ? stack[upvalue.slot] : upvalue.closed);
+          break;
+        }
+        case SET_UPVALUE: {
+          ObjUpvalue upvalue = frame.closure.upvalues[code[ip++]];
+          if (upvalue.isOpen) {
+            stack[upvalue.slot] = peek(0);
+          } else {
+            upvalue.closed = peek(0);
+          }
+          break;
+        }
+        case GET_PROPERTY: {
+          // The operand is the inline cache of this instruction
+          PropertyCache cache = (PropertyCache)constants[code[ip++]];
+          Symbol name = cache.name;
+          if (!(peek(0) instanceof ObjInstance)) {
+            throw error(frame, start, "Only instances can have properties.");
+          }
+          ObjInstance instance = (ObjInstance)peek(0);
+
+          // Try to return field first
+          int slot = instance.slotOf(cache);
+          if (slot != -1) {
+            stack[sp - 1] = instance.getField(slot);
+            break;
+          }
+
+          // Then try to find a method
+          ObjClosure method = instance.klass.methods.get(name);
+          if (method == null) {
+            throw error(frame, start, "Undefined property '" + name + "'.");
+          }
+          stack[sp - 1] = new ObjBoundMethod(instance, method);
+          break;
+        }
+        case SET_PROPERTY: {
+          if (!(peek(1) instanceof ObjInstance)) {
+            throw error(frame, start, "Only instances  have fields.");
+          }
+          ObjInstance instance = (ObjInstance)peek(1);
+          instance.setField((PropertyCache)constants[code[ip++]], peek(0));
+          Object value = pop();
+          stack[sp - 1] = value;
+          break;
+        }
+        case GET_SUPER: {
+          Symbol name = (Symbol)constants[code[ip++]];
+          ObjClass superclass = (ObjClass)pop();
+          ObjClosure method = superclass.methods.get(name);
+          if (method == null) {
+            throw error(frame, start, "Undefined property '" + name + "'.");
+          }
+          stack[sp - 1] = new ObjBoundMethod(peek(0), method);
+          break;
+        }
+        case EQUAL: {
+          Object b = pop();
+          stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+          break;
+        }
+        case NOT_EQUAL: {
+          Object b = pop();
+          stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+          break;
+        }
+        case GREATER: {
+          checkNumberOperands(frame, start);
+          double b = (double)pop();
+          stack[sp - 1] = (double)stack[sp - 1] > b;
+          break;
+        }
+        case GREATER_EQUAL: {
+          checkNumberOperands(frame, start);
+          double b = (double)pop();
+          stack[sp - 1] = (double)stack[sp - 1] >= b;
+          break;
+        }
+        case LESS: {
+          checkNumberOperands(frame, start);
+          double b = (double)pop();
+          stack[sp - 1] = (double)stack[sp - 1] < b;
+          break;
+        }
+        case LESS_EQUAL: {
+          checkNumberOperands(frame, start);
+          double b = (double)pop();
+          stack[sp - 1] = (double)stack[sp - 1] <= b;
+          break;
+        }
+        case ADD: {
+          Object b = pop();
+          Object a = stack[sp - 1];
+          if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double)a + (double)b;
+          } else if (a instanceof CharSequence || b instanceof CharSequence) {
+            stack[sp - 1] = Rope.concat(Rope.text(a), Rope.text(b));
+          } else {
+            throw error(frame, start, "Operands must be two number or two strings.");
+          }
+          break;
+        }
+        case SUBTRACT: {
+          checkNumberOperands(frame, start);
+          double b = (double)pop();
+          stack[sp - 1] = (double)stack[sp - 1] - b;
+          break;
+        }
+        case MULTIPLY: {
+          checkNumberOperands(frame, start);
+          double b = (double)pop();
+          stack[sp - 1] = (double)stack[sp - 1] * b;
+          break;
+        }
+        case DIVIDE: {
+          checkNumberOperands(frame, start);
+          double b = (double)pop();
+          if (b == 0) throw error(frame, start, "Can't divide by zero.");
+          stack[sp - 1] = (double)stack[sp - 1] / b;
+          break;
+        }
+        case NOT:
+          stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+          break;
+        case NEGATE:
+          if (!(peek(0) instanceof Double)) {
+            throw error(frame, start, "Operand must be a number.");
+          }
+          stack[sp - 1] = -(double)stack[sp - 1];
+          break;
+        case PRINT:
+          interpreter.output.println(pop());
+          break;
+        case JUMP: {
+          int offset = code[ip++];
+          ip += offset;
+          break;
+        }
+        case JUMP_IF_FALSE: {
+          int offset = code[ip++];
+          if (!Interpreter.isTruthy(peek(0))) ip += offset;
+          break;
+        }
+        case LOOP: {
+          int offset = code[ip++];
+          ip -= offset;
+          break;
+        }
+        case CALL: {
+          int argCount = code[ip++];
+          frame.ip = ip;
+          callValue(peek(argCount), argCount, frame, start);
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case TAIL_CALL: {
+          int argCount = code[ip++];
+          frame.ip = ip;
+          tailCall(peek(argCount), argCount, frame, start);
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case INVOKE: {
+          PropertyCache cache = (PropertyCache)constants[code[ip++]];
+          int argCount = code[ip++];
+          frame.ip = ip;
+          invoke(cache, argCount, frame, start, false);
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case TAIL_INVOKE: {
+          PropertyCache cache = (PropertyCache)constants[code[ip++]];
+          int argCount = code[ip++];
+          frame.ip = ip;
+          invoke(cache, argCount, frame, start, true);
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case SUPER_INVOKE: {
+          Symbol name = (Symbol)constants[code[ip++]];
+          int argCount = code[ip++];
+          ObjClass superclass = (ObjClass)pop();
+          ObjClosure method = superclass.methods.get(name);
+          if (method == null) {
+            throw error(frame, start, "Undefined property '" + name + "'.");
+          }
+          frame.ip = ip;
+          call(method, argCount, frame.closure.function.chunk.lines[start + 2]);
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case CLOSURE: {
+          ObjClosure closure = new ObjClosure((ObjFunction)constants[code[ip++]]);
+          for (int i = 0; i < closure.upvalues.length; i++) {
+            int isLocal = code[ip++];
+            int index = code[ip++];
+            if (isLocal == 1) {
+              closure.upvalues[i] = captureUpvalue(base + index);
+            } else {
+              closure.upvalues[i] = frame.closure.upvalues[index];
+            }
+          }
+          push(closure);
+          break;
+        }
+        case CLOSE_UPVALUE:
+          closeUpvalues(sp - 1);
+          pop();
+          break;
+        case RETURN: {
+          Object result = pop();
+          closeUpvalues(base);
+          frameCount--;
+          if (frameCount == 0) {
+            pop();
+            return result;
+          }
+
+          Arrays.fill(stack, base, sp, null);
+          sp = base;
+          push(result);
+
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case CLASS:
+          push(new ObjClass(((Symbol)constants[code[ip++]]).name));
+          break;
+        case INHERIT: {
+          ObjClass subclass = (ObjClass)pop();
+          // Copy-down inheritance, subclass methods are added afterwards and
+          // override the copied ones
+          ObjClass superclass = (ObjClass)peek(0);
+          subclass.methods.putAll(superclass.methods);
+          subclass.initializer = superclass.initializer;
+          break;
+        }
+        case METHOD: {
+          ObjClosure method = (ObjClosure)pop();
+          ObjClass klass = (ObjClass)peek(0);
+          Symbol name = (Symbol)constants[code[ip++]];
+          klass.methods.put(name, method);
+          if (name == Symbol.INIT) klass.initializer = method;
+          break;
+        }
+        case CHECK_SUPERCLASS:
+          if (!(peek(0) instanceof ObjClass)) {
+            throw error(frame, start, "Superclass must be a class");
+          }
+          break;
+        case CHECK_CALLABLE:
+          if (!isCallable(peek(0))) {
+            throw error(frame, start, "Only functions and classes are callable.");
+          }
+          break;
+        case CHECK_METHOD: {
+          PropertyCache cache = (PropertyCache)constants[code[ip++]];
+          if (!(peek(0) instanceof ObjInstance)) {
+            throw error(frame, start, "Only instances can have properties.");
+          }
+          ObjInstance instance = (ObjInstance)peek(0);
+          int slot = instance.slotOf(cache);
+          if (slot != -1) {
+            if (!isCallable(instance.getField(slot))) {
+              throw error(frame, start + 1, "Only functions and classes are callable.");
+            }
+          } else if (!instance.klass.methods.containsKey(cache.name)) {
+            throw error(frame, start, "Undefined property '" + cache.name + "'.");
+          }
+          break;
+        }
+        case CHECK_SUPER_METHOD: {
+          Symbol name = (Symbol)constants[code[ip++]];
+          ObjClass superclass = (ObjClass)pop();
+          if (!superclass.methods.containsKey(name)) {
+            throw error(frame, start, "Undefined property '" + name + "'.");
+          }
+          break;
+        }
+        case CHECK_INSTANCE:
+          if (!(peek(0) instanceof ObjInstance)) {
+            throw error(frame, start, "Only instances  have fields.");
+          }
+          break;
+        default:
+          throw new IllegalStateException("Unknown opcode " + code[start]);
+      }
+    }
+  }
+
+  private boolean isCallable(Object callee) {
+    return callee instanceof ObjClosure || callee instanceof ObjBoundMethod ||
+        callee instanceof ObjClass || callee instanceof LoxCallable;
+  }
+
+  // The receiver is below the arguments, `start` is the INVOKE or
+  // TAIL_INVOKE instruction
+  private void invoke(PropertyCache cache, int argCount, CallFrame frame, int start,
+      boolean tail) {
+    Object receiver = peek(argCount);
+    if (!(receiver instanceof ObjInstance)) {
+      throw error(frame, start, "Only instances can have properties.");
+    }
+
+    // Fields shadow methods, whatever the field holds gets called instead
+    ObjInstance instance = (ObjInstance)receiver;
+    int slot = instance.slotOf(cache);
+    if (slot != -1) {
+      Object callee = instance.getField(slot);
+      stack[sp - argCount - 1] = callee;
+      if (tail) {
+        tailCall(callee, argCount, frame, start + 2);
+      } else {
+        callValue(callee, argCount, frame, start + 2);
+      }
+      return;
+    }
+
+    ObjClosure method = instance.klass.methods.get(cache.name);
+    if (method == null) {
+      throw error(frame, start, "Undefined property '" + cache.name + "'.");
+    }
+    if (tail) {
+      // The receiver stays below the arguments and moves into slot 0
+      tailCall(method, argCount, frame, start + 2);
+    } else {
+      call(method, argCount, frame.closure.function.chunk.lines[start + 2]);
+    }
+  }
+
+  // `start` only locates the line of errors
+  private void callValue(Object callee, int argCount, CallFrame frame, int start) {
+    int line = frame.closure.function.chunk.lines[start];
+
+    if (callee instanceof ObjClosure) {
+      call((ObjClosure)callee, argCount, line);
+    } else if (callee instanceof ObjBoundMethod) {
+      ObjBoundMethod bound = (ObjBoundMethod)callee;
+      stack[sp - argCount - 1] = bound.receiver;
+      call(bound.method, argCount, line);
+    } else if (callee instanceof ObjClass) {
+      ObjClass klass = (ObjClass)callee;
+      stack[sp - argCount - 1] = new ObjInstance(klass);
+      ObjClosure initializer = klass.initializer;
+      if (initializer != null) {
+        call(initializer, argCount, line);
+      } else if (argCount != 0) {
+        throw new RuntimeError(line, "Expected 0 arguments but got " + argCount + ".");
+      }
+    } else if (callee instanceof LoxCallable) {
+      LoxCallable function = (LoxCallable)callee;
+      if (argCount != function.arity()) {
+        throw new RuntimeError(line,
+            "Expected " + function.arity() + " arguments but got " + argCount + ".");
+      }
+      Object result = callNative(function, argCount, line);
+      Arrays.fill(stack, sp - argCount - 1, sp, null);
+      sp -= argCount + 1;
+      push(result);
+    } else {
+      throw new RuntimeError(line, "Only functions and classes are callable.");
+    }
+  }
+
+  // Natives get their arguments straight from the stack
+  private Object callNative(LoxCallable function, int argCount, int line) {
+    int first = sp - argCount;
+    interpreter.callLine = line;
+    switch (argCount) {
+      case 0: return function.call0(interpreter);
+      case 1: return function.call1(interpreter, stack[first]);
+      case 2: return function.call2(interpreter, stack[first], stack[first + 1]);
+      case 3: return function.call3(interpreter, stack[first], stack[first + 1], stack[first + 2]);
+      case 4:
+        return function.call4(interpreter, stack[first], stack[first + 1], stack[first + 2],
+            stack[first + 3]);
+      default:
+        return function.call(interpreter, Arrays.copyOfRange(stack, first, sp));
+    }
+  }
+
+  /*
+   * The caller's frame is done once the arguments are evaluated, so a
+   * closure, bound method or method reuses it instead of pushing one.
+   * Anything else is called as usual and the RETURN after TAIL_CALL or
+   * TAIL_INVOKE returns its result.
+   */
+  private void tailCall(Object callee, int argCount, CallFrame frame, int start) {
+    ObjClosure closure;
+    if (callee instanceof ObjClosure) {
+      closure = (ObjClosure)callee;
+    } else if (callee instanceof ObjBoundMethod) {
+      ObjBoundMethod bound = (ObjBoundMethod)callee;
+      stack[sp - argCount - 1] = bound.receiver;
+      closure = bound.method;
+    } else {
+      callValue(callee, argCount, frame, start);
+      return;
+    }
+
+    if (argCount != closure.function.arity) {
+      throw error(frame, start,
+          "Expected " + closure.function.arity + " arguments but got " + argCount + ".");
+    }
+    if (closure.function.lazy != null) compileLazy(closure.function);
+
+    // Move the callee and arguments down over the caller's slots
+    closeUpvalues(frame.base);
+    int count = argCount + 1;
+    System.arraycopy(stack, sp - count, stack, frame.base, count);
+    Arrays.fill(stack, frame.base + count, sp, null);
+    sp = frame.base + count;
+    frame.closure = closure;
+    frame.ip = 0;
+  }
+
+  private void call(ObjClosure closure, int argCount, int line) {
+    if (argCount != closure.function.arity) {
+      throw new RuntimeError(line,
+          "Expected " + closure.function.arity + " arguments but got " + argCount + ".");
+    }
+
+    // The script's frame doesn't count, same as in Interpreter
+    if (frameCount > interpreter.maxDepth) {
+      throw new RuntimeError(line, "Stack overflow.");
+    }
+    if (frameCount == frames.length) growFrames();
+    if (closure.function.lazy != null) compileLazy(closure.function);
+
+    CallFrame frame = frames[frameCount++];
+    frame.closure = closure;
+    frame.ip = 0;
+    frame.base = sp - argCount - 1;
+  }
+
+  private void compileLazy(ObjFunction function) {
+    new BytecodeCompiler(globals, interpreter.isREPL).compileLazy(function);
+  }
+
+  private void growFrames() {
+    int count = frames.length;
+    frames = Arrays.copyOf(frames, count * 2);
+    for (int i = count; i < frames.length; i++) {
+      frames[i] = new CallFrame();
+    }
+  }
+
+  private ObjUpvalue captureUpvalue(int slot) {
+    // Open upvalues are sorted by slot, topmost first
+    ObjUpvalue previous = null;
+    ObjUpvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+
+    if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+    ObjUpvalue created = new ObjUpvalue(slot, upvalue);
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+    return created;
+  }
+
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      ObjUpvalue upvalue = openUpvalues;
+      upvalue.closed = stack[upvalue.slot];
+      upvalue.isOpen = false;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  private void checkNumberOperands(CallFrame frame, int start) {
+    if (peek(0) instanceof Double && peek(1) instanceof Double) return;
+    throw error(frame, start, "Operands must be numbers.");
+  }
+
+  private RuntimeError error(CallFrame frame, int start, String message) {
+    return new RuntimeError(frame.closure.function.chunk.lines[start], message);
+  }
+}
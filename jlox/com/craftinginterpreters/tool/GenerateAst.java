@@ -17,32 +17,39 @@ public class GenerateAst {
 
     String outputDir = args[0];
 
+    // Fields after `|` are not constructor arguments. They're mutable slots
+    // filled in later by the Resolver, so the Interpreter can read the
+    // variable location straight from the node instead of a side table.
+    // The Linker copies them, with fresh profiles, for each context. The
+    // body of a lazy function stays null until its first call.
     defineAst(outputDir, "Expr", Arrays.asList(
-      "Assign     : Token name, Expr value",
+      "Assign     : Token name, Expr value | int kind, int slot",
       "Binary     : Expr left, Token operator, Expr right",
-      "Call       : Expr callee, Token paren, List<Expr> arguments",
-      "Get        : Expr object, Token name",
+      "Call       : Expr callee, Token paren, List<Expr> arguments | CallProfile profile",
+      "Get        : Expr object, Token name | PropertyCache cache",
       "Grouping   : Expr expression",
       "Literal    : Object value",
       "Logical    : Expr left, Token operator, Expr right",
-      "Set        : Expr object, Token name, Expr value",
-      "Super      : Token keyword, Token method",
-      "This       : Token keyword",
+      "Set        : Expr object, Token name, Expr value | PropertyCache cache",
+      "Super      : Token keyword, Token method | int kind, int slot, int thisKind, int thisSlot",
+      "This       : Token keyword | int kind, int slot",
       "Unary      : Token operator, Expr right",
-      "Variable   : Token name",
-      "Function   : List<Token> params, List<Stmt> body"
+      "Variable   : Token name | int kind, int slot",
+      "Function   : List<Token> params | List<Stmt> body, FunctionProfile profile, int slots, " +
+          "int[] cells, int[] captures, LazyFunction lazy"
     ));
 
     defineAst(outputDir, "Stmt", Arrays.asList(
-      "Block      : List<Stmt> statements",
-      "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+      "Block      : List<Stmt> statements | int slots",
+      "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods | " +
+          "int kind, int slot, int superSlot",
       "Expression : Expr expression",
-      "Function   : Token name, Expr.Function function",
+      "Function   : Token name, Expr.Function function | int kind, int slot",
       "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
       "Print      : Expr expression",
       // return stores it's token position for error reporting
       "Return     : Token keyword, Expr value",
-      "Var        : Token name, Expr initializer",
+      "Var        : Token name, Expr initializer | int kind, int slot",
       "While      : Expr condition, Stmt body",
       "Break      :"
     ));
@@ -65,8 +72,10 @@ public class GenerateAst {
     for (String type : types) {
       String[] parts = type.split(":");
       String className = parts[0].trim();
-      String fields = parts.length > 1 ? parts[1].trim() : "";
-      defineType(writer, baseName, className, fields);
+      String[] fieldParts = parts.length > 1 ? parts[1].split("\\|") : new String[0];
+      String fields = fieldParts.length > 0 ? fieldParts[0].trim() : "";
+      String resolvedFields = fieldParts.length > 1 ? fieldParts[1].trim() : "";
+      defineType(writer, baseName, className, fields, resolvedFields);
     }
 
     writer.println();
@@ -86,7 +95,7 @@ public class GenerateAst {
     writer.println("  }");
   }
 
-  public static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+  public static void defineType(PrintWriter writer, String baseName, String className, String fieldList, String resolvedList) {
     // Declaration
     // 1 level indent
     writer.println("  static class " + className + " extends " + baseName + " {");
@@ -125,6 +134,18 @@ public class GenerateAst {
       }
     }
 
+    // Resolved fields, -1 means "not resolved" (e.g. a global variable)
+    if (!resolvedList.isEmpty()) {
+      writer.println();
+      for (String field : resolvedList.split(", ")) {
+        if (field.startsWith("int ")) {
+          writer.println("    " + field + " = -1;");
+        } else {
+          writer.println("    " + field + ";");
+        }
+      }
+    }
+
     // Close
     // 1 level indent
     writer.println("  }");